@@ -0,0 +1,50 @@
+#!/usr/bin/env python3
+"""Compares JMH results against a baseline, writes a Markdown report and fails on significant regressions.
+
+Usage: jmh-compare.py <baseline.json> <result.json> <threshold-percent>
+
+Benchmarks are matched by name and parameters, the ones missing from either file are skipped. A benchmark regresses
+when its score is worse than the baseline by more than the threshold, and its confidence interval does not overlap the
+baseline one, so that the noise of shared runners is not reported.
+"""
+import json
+import sys
+
+
+def load(path):
+    with open(path) as file:
+        results = {}
+        for result in json.load(file):
+            params = ",".join(f"{name}={value}" for name, value in sorted(result.get("params", {}).items()))
+            metric = result["primaryMetric"]
+            results[(result["benchmark"], params)] = (result["mode"], metric["score"], metric["scoreError"], metric["scoreUnit"])
+        return results
+
+
+def main(baseline_path, result_path, threshold_percent):
+    baseline = load(baseline_path)
+    current = load(result_path)
+    lines = ["| Benchmark | Params | Baseline | Current | Change |", "|---|---|---|---|---|"]
+    regressions = 0
+    for key in sorted(current.keys() & baseline.keys()):
+        mode, score, error, unit = current[key]
+        _, base_score, base_error, _ = baseline[key]
+        if base_score == 0:
+            continue
+        change = (score - base_score) / base_score * 100
+        # Throughput is better when higher, the other modes measure time
+        worse = -change if mode == "thrpt" else change
+        overlap = abs(score - base_score) <= error + base_error
+        regressed = worse > threshold_percent and not overlap
+        regressions += regressed
+        name = key[0].rsplit(".", 2)[-2] + "." + key[0].rsplit(".", 1)[-1]
+        lines.append(f"| {name} | {key[1]} | {base_score:.3f} ± {base_error:.3f} {unit} | {score:.3f} ± {error:.3f} {unit} "
+                     f"| {change:+.1f}%{' :warning:' if regressed else ''} |")
+    print("\n".join(lines))
+    print()
+    print(f"{regressions} regression(s) above {threshold_percent}% out of {len(current.keys() & baseline.keys())} benchmarks")
+    return 1 if regressions else 0
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv[1], sys.argv[2], float(sys.argv[3])))
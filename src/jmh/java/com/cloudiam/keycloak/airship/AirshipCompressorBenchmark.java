@@ -0,0 +1,71 @@
+package com.cloudiam.keycloak.airship;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of request compression against the bytes it saves, reported as the {@code originalBytes} and
+ * {@code compressedBytes} secondary results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AirshipCompressorBenchmark {
+
+    @Param({"2", "16", "64"})
+    int htmlKilobytes;
+
+    @Param({"GZIP", "DEFLATE"})
+    AirshipCompressor.Encoding encoding;
+
+    @Param({"1", "6", "9"})
+    int level;
+
+    private AirshipCompressor compressor;
+    private AirshipPayload payload;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+
+        public long originalBytes;
+        public long compressedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            originalBytes = 0;
+            compressedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        compressor = new AirshipCompressor(encoding, level, 0);
+        payload = new AirshipPayloadWriter(EmailTemplates.SENDER).write(EmailTemplates.message(htmlKilobytes));
+    }
+
+    @Benchmark
+    public AirshipPayload compress(Sizes sizes) {
+        AirshipPayload compressed = compressor.compress(payload);
+        sizes.originalBytes += payload.length();
+        sizes.compressedBytes += compressed == null ? payload.length() : compressed.length();
+        return compressed;
+    }
+}
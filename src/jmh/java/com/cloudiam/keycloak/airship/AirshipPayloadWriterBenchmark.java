@@ -0,0 +1,45 @@
+package com.cloudiam.keycloak.airship;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Payload construction and serialization, run with {@code -prof gc} to report the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AirshipPayloadWriterBenchmark {
+
+    @Param({"2", "16", "64"})
+    int htmlKilobytes;
+
+    private AirshipPayloadWriter payloadWriter;
+    private AirshipEmailMessage message;
+
+    @Setup
+    public void setUp() {
+        payloadWriter = new AirshipPayloadWriter(EmailTemplates.SENDER);
+        message = EmailTemplates.message(htmlKilobytes);
+    }
+
+    @Benchmark
+    public AirshipPayload write() throws IOException {
+        return payloadWriter.write(message);
+    }
+}
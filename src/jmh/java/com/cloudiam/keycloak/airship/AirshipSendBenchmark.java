@@ -0,0 +1,121 @@
+package com.cloudiam.keycloak.airship;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.keycloak.email.EmailException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end synchronous sends against an in-process stub of the Airship API, at several concurrency levels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AirshipSendBenchmark {
+
+    private static final String ENDPOINT = "/api/create-and-send";
+    private static final byte[] ACCEPTED = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"16"})
+    int htmlKilobytes;
+
+    @Param({"0", "20"})
+    int airshipLatencyMillis;
+
+    @Param({"1", "100"})
+    int batchMaxSize;
+
+    private HttpServer server;
+    private AirshipHttpClient httpClient;
+    private AirshipEmailProvider provider;
+    private AirshipEmailMessage message;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext(ENDPOINT, exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
+            pause(airshipLatencyMillis);
+            exchange.sendResponseHeaders(202, ACCEPTED.length);
+            exchange.getResponseBody().write(ACCEPTED);
+            exchange.close();
+        });
+        server.start();
+
+        var metrics = new AirshipMetrics(new SimpleMeterRegistry());
+        var account = new AirshipAccount("http://localhost:" + server.getAddress().getPort(), ENDPOINT, "vnd.urbanairship+json", "token", "app-key");
+        httpClient = new AirshipHttpClient(account, null, false, Duration.ofSeconds(2), Duration.ofSeconds(10), null, metrics);
+        var retryPolicy = new AirshipRetryPolicy(1, Duration.ZERO, Duration.ZERO, Duration.ZERO, false, 0, 0);
+        var concurrencyLimiter = new AirshipConcurrencyLimiter(20, 1, 200, Duration.ofSeconds(5));
+        var circuitBreaker = new AirshipCircuitBreaker(50, 20, 50, Duration.ofSeconds(5), 80, Duration.ofSeconds(30), 5);
+        var dispatcher = new AirshipDispatcher(httpClient, null, retryPolicy, null, concurrencyLimiter, circuitBreaker, metrics, batchMaxSize, Duration.ofMillis(5));
+        provider = new AirshipEmailProvider(null, dispatcher, new AirshipPayloadWriter(EmailTemplates.SENDER), null, false, null, metrics);
+        message = EmailTemplates.message(htmlKilobytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        httpClient.close();
+        server.stop(0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void send1() throws EmailException {
+        send();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void send16() throws EmailException {
+        send();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void send64() throws EmailException {
+        send();
+    }
+
+    private void send() throws EmailException {
+        provider.send(Map.of(), message.address(), message.subject(), message.textBody(), message.htmlBody());
+    }
+
+    private static void pause(int millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
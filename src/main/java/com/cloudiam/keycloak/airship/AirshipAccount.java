@@ -0,0 +1,34 @@
+package com.cloudiam.keycloak.airship;
+
+/**
+ * Airship API endpoint and credentials used to send the emails of a realm.
+ *
+ * @param accessToken static bearer token, unused when {@code oauth} is set
+ * @param oauth       client credentials to request short-lived access tokens with, or {@code null}
+ */
+public record AirshipAccount(String domain, String endpoint, String header, String accessToken, String appKey, OAuth oauth) {
+
+    /**
+     * Airship OAuth client, requesting tokens for the app key of the account.
+     *
+     * @param scope space-separated scopes of the tokens, or {@code null} for all the scopes of the client
+     */
+    public record OAuth(String clientId, String clientSecret, String tokenUrl, String scope) {
+
+        @Override
+        public String toString() {
+            // Keep the client secret out of logs
+            return "OAuth[clientId=" + clientId + ", tokenUrl=" + tokenUrl + ", scope=" + scope + "]";
+        }
+    }
+
+    public AirshipAccount(String domain, String endpoint, String header, String accessToken, String appKey) {
+        this(domain, endpoint, header, accessToken, appKey, null);
+    }
+
+    @Override
+    public String toString() {
+        // Keep the access token out of logs
+        return "AirshipAccount[domain=" + domain + ", endpoint=" + endpoint + ", appKey=" + appKey + ", oauth=" + oauth + "]";
+    }
+}
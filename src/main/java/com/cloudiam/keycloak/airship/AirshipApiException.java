@@ -0,0 +1,42 @@
+package com.cloudiam.keycloak.airship;
+
+import org.keycloak.email.EmailException;
+
+import java.time.Duration;
+
+/**
+ * Error response returned by the Airship API.
+ */
+public class AirshipApiException extends EmailException {
+
+    private final int status;
+    private final Duration retryAfter;
+
+    public AirshipApiException(int status, String body) {
+        this(status, body, null);
+    }
+
+    public AirshipApiException(int status, String body, Duration retryAfter) {
+        super("Airship API responded with error: " + status + " - " + body);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Delay requested by Airship before sending again, or {@code null}.
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Whether the same request may succeed if sent again later.
+     */
+    public boolean isTransient() {
+        return status == 408 || status == 429 || status >= 500;
+    }
+}
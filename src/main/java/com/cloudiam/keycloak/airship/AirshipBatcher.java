@@ -0,0 +1,202 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces the emails sent within a short window into a single Airship request.
+ * <p>
+ * The first email of a batch waits for the window to elapse or the batch to fill up, then posts the batch while the
+ * other senders wait for the outcome. Emails of the same Airship template are merged into one {@code create_and_send}
+ * request, each recipient carrying its own substitutions, while emails rendered by Keycloak are only merged when their
+ * subject and bodies are equal. Each group of merged emails is posted as its own request, and an email left alone in
+ * its group is posted by its sender. Airship accepts or rejects a request as a whole: when a group is rejected as
+ * invalid, each email is posted again on its own so that a single bad address does not fail the others.
+ */
+public class AirshipBatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipBatcher.class);
+
+    @FunctionalInterface
+    public interface Poster {
+
+        /**
+         * @param emails number of emails sent by the payload
+         */
+        void post(String description, AirshipPayload payload, int emails) throws EmailException;
+    }
+
+    private final int maxSize;
+    private final long windowNanos;
+    private final Poster poster;
+    private final AirshipMetrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition full = lock.newCondition();
+    private List<Entry> pending;
+
+    public AirshipBatcher(int maxSize, Duration window, Poster poster, AirshipMetrics metrics) {
+        this.maxSize = maxSize;
+        this.windowNanos = window.toNanos();
+        this.poster = poster;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds the email to the current batch and waits for the batch to be sent.
+     *
+     * @param payload the email serialized on its own, posted as is when it ends up alone in its group
+     */
+    public void send(AirshipPayloadWriter payloadWriter, AirshipEmailMessage message, AirshipPayload payload) throws EmailException {
+        var entry = new Entry(payloadWriter, message, payload);
+        List<Entry> batch;
+        boolean leader;
+        lock.lock();
+        try {
+            leader = pending == null;
+            if (leader) {
+                pending = new ArrayList<>(maxSize);
+            }
+            batch = pending;
+            batch.add(entry);
+            if (batch.size() >= maxSize) {
+                pending = null;
+                full.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (leader) {
+            awaitWindow(batch);
+            post(batch);
+        }
+        if (await(entry)) {
+            poster.post(message.address(), payload, 1);
+        }
+    }
+
+    private void awaitWindow(List<Entry> batch) {
+        lock.lock();
+        try {
+            long remaining = windowNanos;
+            while (pending == batch && remaining > 0) {
+                remaining = full.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (pending == batch) {
+                pending = null;
+            }
+            lock.unlock();
+        }
+    }
+
+    private void post(List<Entry> batch) {
+        Map<Object, List<Entry>> groups = new LinkedHashMap<>();
+        for (Entry entry : batch) {
+            groups.computeIfAbsent(entry.mergeKey(), key -> new ArrayList<>()).add(entry);
+        }
+        groups.values().forEach(group -> metrics.recordBatch(group.size()));
+
+        try {
+            // Emails alone in their group are posted by their senders, in parallel with the groups
+            for (List<Entry> group : groups.values()) {
+                if (group.size() == 1) {
+                    group.get(0).result.complete(true);
+                }
+            }
+            for (List<Entry> group : groups.values()) {
+                if (group.size() > 1) {
+                    postGroup(group);
+                }
+            }
+        } finally {
+            // An error thrown while posting must not leave the other senders waiting forever
+            for (Entry entry : batch) {
+                if (!entry.result.isDone()) {
+                    entry.result.completeExceptionally(new EmailException("Airship batch was not sent"));
+                }
+            }
+        }
+    }
+
+    private void postGroup(List<Entry> group) {
+        try {
+            List<AirshipEmailMessage> recipients = group.stream().map(entry -> entry.message).toList();
+            AirshipPayload payload = group.get(0).payloadWriter.write(recipients);
+            poster.post("batch of " + group.size() + " emails", payload, group.size());
+            group.forEach(entry -> entry.result.complete(false));
+        } catch (AirshipApiException e) {
+            if (e.isTransient()) {
+                group.forEach(entry -> entry.result.completeExceptionally(e));
+            } else {
+                LOGGER.warnf("Airship rejected a batch of %d emails, sending them one by one: %s", group.size(), e.getMessage());
+                group.forEach(entry -> entry.result.complete(true));
+            }
+        } catch (EmailException | IOException | RuntimeException e) {
+            group.forEach(entry -> entry.result.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * @return whether the email is left to be posted on its own
+     */
+    private static boolean await(Entry entry) throws EmailException {
+        try {
+            return entry.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailException("Interrupted while waiting for the Airship batch to be sent", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EmailException emailException) {
+                throw emailException;
+            }
+            throw new EmailException("Failed to send email via Airship", e.getCause());
+        }
+    }
+
+    /**
+     * Emails of the same template only differ by their recipient and substitutions, so they share a payload.
+     */
+    private record TemplateKey(AirshipPayloadWriter payloadWriter, String templateId) {
+    }
+
+    /**
+     * Emails rendered by Keycloak can only share a payload when everything but their recipient is equal.
+     */
+    private record ContentKey(AirshipPayloadWriter payloadWriter, String subject, String textBody, String htmlBody) {
+    }
+
+    private static final class Entry {
+
+        final AirshipPayloadWriter payloadWriter;
+        final AirshipEmailMessage message;
+        final AirshipPayload payload;
+        // Completed with true when the email must still be posted on its own
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Entry(AirshipPayloadWriter payloadWriter, AirshipEmailMessage message, AirshipPayload payload) {
+            this.payloadWriter = payloadWriter;
+            this.message = message;
+            this.payload = payload;
+        }
+
+        Object mergeKey() {
+            return message.templateId() != null
+                    ? new TemplateKey(payloadWriter, message.templateId())
+                    : new ContentKey(payloadWriter, message.subject(), message.textBody(), message.htmlBody());
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sends emails to many users page by page, recording its progress on disk so that it can be resumed after a pause or a
+ * restart.
+ * <p>
+ * Each page is split into slices sent at the same time, which bounds the number of emails in flight. The cursor only
+ * moves once a whole page is sent, so the emails of the page in progress when a node stops are sent again on resume.
+ * The outcome of each user is appended to a newline-delimited JSON file. The user ids of a job are stored in a file
+ * read one page at a time, from the cursor, so that a job never holds them all in memory.
+ */
+public class AirshipBulkSendJob {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipBulkSendJob.class);
+
+    static final String STATUS_EXTENSION = ".json";
+    private static final String USER_IDS_EXTENSION = ".ids";
+    private static final String RESULTS_EXTENSION = ".results.ndjson";
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(30);
+
+    public enum State {
+        RUNNING,
+        PAUSED,
+        COMPLETED,
+        FAILED
+    }
+
+    public enum Outcome {
+        SENT,
+        /** The user does not exist anymore, is disabled or has no email. */
+        SKIPPED,
+        FAILED
+    }
+
+    public record Result(String userId, Outcome outcome, String detail) {
+    }
+
+    /**
+     * Progress of a job, returned by the admin endpoint and stored on disk.
+     *
+     * @param total  number of users to email, or {@code -1} when they are searched
+     * @param cursor number of users processed so far
+     */
+    public record Status(String id, String realmId, AirshipBulkSendRequest request, State state, long total, long cursor,
+                         long sent, long skipped, long failed, long createdAt, long updatedAt, String error) {
+    }
+
+    /**
+     * Lists the ids of a page of the users matching the search of the job.
+     */
+    @FunctionalInterface
+    public interface Search {
+
+        List<String> page(int first, int max);
+    }
+
+    /**
+     * Sends the email of the job to a slice of users, in the order of their ids.
+     */
+    @FunctionalInterface
+    public interface Sender {
+
+        List<Result> send(List<String> userIds);
+    }
+
+    private final Path directory;
+    private final String id;
+    private final String realmId;
+    private final AirshipBulkSendRequest request;
+    // Number of user ids of the job, or -1 when its users are searched
+    private final long total;
+    private final long createdAt;
+    private State state;
+    private long cursor;
+    private long sent;
+    private long skipped;
+    private long failed;
+    private long updatedAt;
+    private String error;
+    private volatile Thread thread;
+
+    private AirshipBulkSendJob(Path directory, Status status) {
+        this.directory = directory;
+        this.id = status.id();
+        this.realmId = status.realmId();
+        this.request = status.request();
+        this.total = status.total();
+        this.createdAt = status.createdAt();
+        this.state = status.state();
+        this.cursor = status.cursor();
+        this.sent = status.sent();
+        this.skipped = status.skipped();
+        this.failed = status.failed();
+        this.updatedAt = status.updatedAt();
+        this.error = status.error();
+    }
+
+    /**
+     * Creates a paused job, stored in the given directory.
+     */
+    public static AirshipBulkSendJob create(Path directory, String realmId, AirshipBulkSendRequest request) throws IOException {
+        String id = UUID.randomUUID().toString();
+        List<String> userIds = request.userIds();
+        long now = System.currentTimeMillis();
+        var status = new Status(id, realmId, request.withoutUserIds(), State.PAUSED, userIds == null ? -1 : userIds.size(),
+                0, 0, 0, 0, now, now, null);
+        Files.createDirectories(directory);
+        if (userIds != null) {
+            Files.write(directory.resolve(id + USER_IDS_EXTENSION), userIds);
+        }
+        var job = new AirshipBulkSendJob(directory, status);
+        job.save();
+        return job;
+    }
+
+    /**
+     * Loads a job stored by a previous run, without its user ids. A job that was running is paused, it was interrupted
+     * by the restart.
+     */
+    public static AirshipBulkSendJob load(Path directory, String id) throws IOException {
+        Status status = JsonSerialization.readValue(Files.readAllBytes(directory.resolve(id + STATUS_EXTENSION)), Status.class);
+        var job = new AirshipBulkSendJob(directory, status);
+        if (status.state() == State.RUNNING) {
+            job.state = State.PAUSED;
+            job.save();
+        }
+        return job;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public AirshipBulkSendRequest getRequest() {
+        return request;
+    }
+
+    public synchronized Status getStatus() {
+        return new Status(id, realmId, request, state, total, cursor, sent, skipped, failed,
+                createdAt, updatedAt, error);
+    }
+
+    public synchronized boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    /**
+     * Runs the job in the background, from where it was paused.
+     *
+     * @param parallelism number of slices of a page sent at the same time
+     */
+    public synchronized void start(Search search, Sender sender, int pageSize, int parallelism) throws IOException {
+        if (state == State.RUNNING || state == State.COMPLETED) {
+            throw new IllegalStateException("Bulk send job " + id + " is " + state);
+        }
+        if (thread != null && thread.isAlive()) {
+            throw new IllegalStateException("Bulk send job " + id + " is still sending its current page");
+        }
+        state = State.RUNNING;
+        error = null;
+        save();
+        thread = Thread.ofVirtual().name("airship-bulk-send-" + id).start(() -> run(search, sender, pageSize, parallelism));
+    }
+
+    /**
+     * Pauses the job once the page in progress is sent.
+     */
+    public synchronized void pause() throws IOException {
+        if (state == State.RUNNING) {
+            state = State.PAUSED;
+            save();
+        }
+    }
+
+    /**
+     * Pauses the job and waits for the page in progress to be sent, interrupting it when it takes too long.
+     */
+    public void stop() {
+        Thread running = thread;
+        try {
+            pause();
+            if (running != null && !running.join(STOP_TIMEOUT)) {
+                running.interrupt();
+            }
+        } catch (IOException e) {
+            LOGGER.warnf("Failed to pause bulk send job %s: %s", id, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the job to pause or to end.
+     */
+    public void join(Duration timeout) throws InterruptedException {
+        Thread running = thread;
+        if (running != null) {
+            running.join(timeout);
+        }
+    }
+
+    /**
+     * Writes the outcome of each user processed so far, one JSON object per line.
+     */
+    public void writeResults(OutputStream out) throws IOException {
+        Path results = directory.resolve(id + RESULTS_EXTENSION);
+        if (Files.exists(results)) {
+            Files.copy(results, out);
+        }
+    }
+
+    /**
+     * Deletes the files of a job that is not running, nor still sending the page in progress when it was paused.
+     */
+    public synchronized void delete() throws IOException {
+        if (state == State.RUNNING) {
+            throw new IllegalStateException("Bulk send job " + id + " is running");
+        }
+        // The page in progress would write the files of the job again once sent
+        if (thread != null && thread.isAlive()) {
+            throw new IllegalStateException("Bulk send job " + id + " is still sending its current page");
+        }
+        Files.deleteIfExists(directory.resolve(id + RESULTS_EXTENSION));
+        Files.deleteIfExists(directory.resolve(id + USER_IDS_EXTENSION));
+        Files.deleteIfExists(directory.resolve(id + STATUS_EXTENSION));
+    }
+
+    private void run(Search search, Sender sender, int pageSize, int parallelism) {
+        try (BufferedReader userIds = openUserIds()) {
+            while (isRunning()) {
+                List<String> page = userIds == null ? search.page((int) getStatus().cursor(), pageSize) : nextPage(userIds, pageSize);
+                if (!page.isEmpty()) {
+                    record(send(page, sender, parallelism));
+                }
+                // A search is over once it returns a partial page
+                if (page.isEmpty() || (userIds == null && page.size() < pageSize)) {
+                    end(State.COMPLETED, null);
+                }
+            }
+            LOGGER.infof("Bulk send job %s stopped: %s", id, getStatus());
+        } catch (InterruptedException e) {
+            LOGGER.infof("Bulk send job %s interrupted, it will resume from user %d", id, getStatus().cursor());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.errorf(e, "Bulk send job %s failed", id);
+            end(State.FAILED, e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the user ids of the job at the cursor.
+     *
+     * @return the reader of the user ids, or {@code null} when the users of the job are searched
+     */
+    private BufferedReader openUserIds() throws IOException {
+        if (total < 0) {
+            return null;
+        }
+        BufferedReader reader = Files.newBufferedReader(directory.resolve(id + USER_IDS_EXTENSION), StandardCharsets.UTF_8);
+        try {
+            long from = getStatus().cursor();
+            for (long line = 0; line < from && reader.readLine() != null; line++) {
+                // Skips the users already processed
+            }
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    private static List<String> nextPage(BufferedReader userIds, int pageSize) throws IOException {
+        List<String> page = new ArrayList<>(pageSize);
+        String userId;
+        while (page.size() < pageSize && (userId = userIds.readLine()) != null) {
+            page.add(userId);
+        }
+        return page;
+    }
+
+    private static List<Result> send(List<String> page, Sender sender, int parallelism) throws InterruptedException {
+        int sliceSize = (page.size() + parallelism - 1) / parallelism;
+        List<List<String>> slices = new ArrayList<>();
+        for (int from = 0; from < page.size(); from += sliceSize) {
+            slices.add(page.subList(from, Math.min(from + sliceSize, page.size())));
+        }
+
+        List<Result> results = new ArrayList<>(page.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<List<Result>>> futures = new ArrayList<>(slices.size());
+            for (List<String> slice : slices) {
+                futures.add(executor.submit(() -> sender.send(slice)));
+            }
+            for (int i = 0; i < slices.size(); i++) {
+                try {
+                    results.addAll(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    // The whole slice failed, such as when its session could not be opened
+                    for (String userId : slices.get(i)) {
+                        results.add(new Result(userId, Outcome.FAILED, String.valueOf(e.getCause().getMessage())));
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private synchronized void record(List<Result> results) throws IOException {
+        var lines = new ByteArrayOutputStream();
+        for (Result result : results) {
+            lines.write(JsonSerialization.writeValueAsBytes(result));
+            lines.write('\n');
+            switch (result.outcome()) {
+                case SENT -> sent++;
+                case SKIPPED -> skipped++;
+                case FAILED -> failed++;
+            }
+        }
+        Files.write(directory.resolve(id + RESULTS_EXTENSION), lines.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        cursor += results.size();
+        save();
+    }
+
+    private synchronized void end(State state, String error) {
+        this.state = state;
+        this.error = error;
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.warnf("Failed to save bulk send job %s: %s", id, e.getMessage());
+        }
+    }
+
+    private void save() throws IOException {
+        updatedAt = System.currentTimeMillis();
+        Path file = directory.resolve(id + STATUS_EXTENSION);
+        Path temporary = directory.resolve(id + STATUS_EXTENSION + ".tmp");
+        Files.write(temporary, JsonSerialization.writeValueAsBytes(getStatus()));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
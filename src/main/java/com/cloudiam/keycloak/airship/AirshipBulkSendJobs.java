@@ -0,0 +1,208 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.actiontoken.execactions.ExecuteActionsActionToken;
+import org.keycloak.common.util.Time;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailTemplateProvider;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.resources.LoginActionsService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Bulk send jobs of this node, sending required action emails from their own Keycloak sessions.
+ * <p>
+ * Jobs are stored on the local disk of the node running them, so their admin calls must reach that node. Users are
+ * searched one page at a time and each slice of a page is sent in its own transaction, so a job never holds all its
+ * users in memory nor a long transaction.
+ */
+public class AirshipBulkSendJobs implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipBulkSendJobs.class);
+
+    private final Path directory;
+    private final int pageSize;
+    private final int maxParallelism;
+    private final int maxRunningJobs;
+    private final Map<String, AirshipBulkSendJob> jobs = new ConcurrentHashMap<>();
+    private KeycloakSessionFactory sessionFactory;
+
+    /**
+     * @param maxParallelism highest number of emails a job sends at once
+     * @param maxRunningJobs highest number of jobs running at once on this node
+     */
+    public AirshipBulkSendJobs(Path directory, int pageSize, int maxParallelism, int maxRunningJobs) {
+        this.directory = directory;
+        this.pageSize = pageSize;
+        this.maxParallelism = maxParallelism;
+        this.maxRunningJobs = maxRunningJobs;
+    }
+
+    /**
+     * Loads the jobs stored by the previous runs, paused.
+     */
+    public void load(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(path -> path.toString().endsWith(AirshipBulkSendJob.STATUS_EXTENSION)).toList()) {
+                String fileName = file.getFileName().toString();
+                String id = fileName.substring(0, fileName.length() - AirshipBulkSendJob.STATUS_EXTENSION.length());
+                try {
+                    jobs.put(id, AirshipBulkSendJob.load(directory, id));
+                } catch (IOException e) {
+                    LOGGER.warnf("Failed to load bulk send job %s: %s", id, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warnf("Failed to list the bulk send jobs in %s: %s", directory, e.getMessage());
+        }
+        LOGGER.infof("Loaded %d bulk send jobs from %s", jobs.size(), directory);
+    }
+
+    /**
+     * Creates a job and starts it.
+     *
+     * @param uriInfo URIs of the admin request, to build the action links from
+     */
+    public synchronized AirshipBulkSendJob start(RealmModel realm, AirshipBulkSendRequest request, KeycloakUriInfo uriInfo) throws IOException {
+        checkCapacity();
+        AirshipBulkSendJob job = AirshipBulkSendJob.create(directory, realm.getId(), request);
+        jobs.put(job.getId(), job);
+        run(job, uriInfo);
+        LOGGER.infof("Bulk send job %s started in realm %s", job.getId(), realm.getName());
+        return job;
+    }
+
+    /**
+     * Starts a paused or failed job again from where it stopped.
+     */
+    public synchronized void resume(AirshipBulkSendJob job, KeycloakUriInfo uriInfo) throws IOException {
+        checkCapacity();
+        run(job, uriInfo);
+        LOGGER.infof("Bulk send job %s resumed", job.getId());
+    }
+
+    public List<AirshipBulkSendJob> list(RealmModel realm) {
+        return jobs.values().stream().filter(job -> job.getRealmId().equals(realm.getId())).toList();
+    }
+
+    /**
+     * @return the job of the realm, or {@code null}
+     */
+    public AirshipBulkSendJob get(RealmModel realm, String id) {
+        AirshipBulkSendJob job = jobs.get(id);
+        return job == null || !job.getRealmId().equals(realm.getId()) ? null : job;
+    }
+
+    public void delete(AirshipBulkSendJob job) throws IOException {
+        job.delete();
+        jobs.remove(job.getId());
+    }
+
+    @Override
+    public void close() {
+        jobs.values().forEach(AirshipBulkSendJob::stop);
+    }
+
+    private void checkCapacity() {
+        if (jobs.values().stream().filter(AirshipBulkSendJob::isRunning).count() >= maxRunningJobs) {
+            throw new IllegalStateException("Too many bulk send jobs running, at most " + maxRunningJobs);
+        }
+    }
+
+    private void run(AirshipBulkSendJob job, KeycloakUriInfo uriInfo) throws IOException {
+        AirshipBulkSendRequest request = job.getRequest();
+        int parallelism = request.parallelism() == null ? maxParallelism : Math.max(1, Math.min(request.parallelism(), maxParallelism));
+        job.start((first, max) -> search(job, first, max), userIds -> send(job, uriInfo, userIds), pageSize, parallelism);
+    }
+
+    private List<String> search(AirshipBulkSendJob job, int first, int max) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(job.getRealmId());
+            if (realm == null) {
+                throw new IllegalStateException("Realm of the bulk send job was removed");
+            }
+            AirshipBulkSendRequest request = job.getRequest();
+            Map<String, String> params = new HashMap<>();
+            if (request.query() != null) {
+                params.putAll(request.query());
+            }
+            if (request.search() != null) {
+                params.put(UserModel.SEARCH, request.search());
+            }
+            params.put(UserModel.INCLUDE_SERVICE_ACCOUNT, Boolean.FALSE.toString());
+            return session.users().searchForUserStream(realm, params, first, max).map(UserModel::getId).toList();
+        });
+    }
+
+    private List<AirshipBulkSendJob.Result> send(AirshipBulkSendJob job, KeycloakUriInfo uriInfo, List<String> userIds) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(job.getRealmId());
+            if (realm == null) {
+                throw new IllegalStateException("Realm of the bulk send job was removed");
+            }
+            session.getContext().setRealm(realm);
+            List<AirshipBulkSendJob.Result> results = new ArrayList<>(userIds.size());
+            for (String userId : userIds) {
+                results.add(sendActions(session, realm, job.getRequest(), uriInfo, userId));
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Emails the required actions to the user, as the admin {@code execute-actions-email} endpoint does.
+     */
+    private static AirshipBulkSendJob.Result sendActions(KeycloakSession session, RealmModel realm, AirshipBulkSendRequest request,
+                                                         KeycloakUriInfo uriInfo, String userId) {
+        UserModel user = session.users().getUserById(realm, userId);
+        if (user == null) {
+            return new AirshipBulkSendJob.Result(userId, AirshipBulkSendJob.Outcome.SKIPPED, "User not found");
+        }
+        if (!user.isEnabled()) {
+            return new AirshipBulkSendJob.Result(userId, AirshipBulkSendJob.Outcome.SKIPPED, "User is disabled");
+        }
+        if (user.getEmail() == null) {
+            return new AirshipBulkSendJob.Result(userId, AirshipBulkSendJob.Outcome.SKIPPED, "User has no email");
+        }
+
+        int lifespan = request.lifespan();
+        var token = new ExecuteActionsActionToken(user.getId(), user.getEmail(), Time.currentTime() + lifespan,
+                request.actions(), request.redirectUri(), request.clientId());
+        try {
+            String link = LoginActionsService.actionTokenProcessor(uriInfo)
+                    .queryParam("key", token.serialize(session, realm, uriInfo))
+                    .build(realm.getName())
+                    .toString();
+            session.getProvider(EmailTemplateProvider.class)
+                    .setAttribute(Constants.TEMPLATE_ATTR_REQUIRED_ACTIONS, token.getRequiredActions())
+                    .setRealm(realm)
+                    .setUser(user)
+                    .sendExecuteActions(link, TimeUnit.SECONDS.toMinutes(lifespan));
+            return new AirshipBulkSendJob.Result(userId, AirshipBulkSendJob.Outcome.SENT, null);
+        } catch (EmailException | RuntimeException e) {
+            // A failed email must not roll back the emails already sent from the same transaction
+            LOGGER.debugf("Bulk send to user %s failed: %s", userId, e.getMessage());
+            return new AirshipBulkSendJob.Result(userId, AirshipBulkSendJob.Outcome.FAILED, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.cloudiam.keycloak.airship;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bulk send job requested by an administrator: the required actions to email, like the admin {@code execute-actions-email}
+ * endpoint does, and the users to email, either the users matching a search or a list of user ids.
+ *
+ * @param lifespan    lifespan of the action links in seconds, or {@code null} for the realm default
+ * @param search      free text search of the users, as in the admin console
+ * @param query       exact search of the users by {@code username}, {@code email}, {@code enabled} or user attribute
+ * @param userIds     ids of the users, instead of a search
+ * @param parallelism number of emails sent at once, or {@code null} for the default
+ */
+public record AirshipBulkSendRequest(List<String> actions, Integer lifespan, String clientId, String redirectUri,
+                                     String search, Map<String, String> query, List<String> userIds, Integer parallelism) {
+
+    /**
+     * The same request without its user ids, which are stored apart from the job status.
+     */
+    public AirshipBulkSendRequest withoutUserIds() {
+        return new AirshipBulkSendRequest(actions, lifespan, clientId, redirectUri, search, query, null, parallelism);
+    }
+}
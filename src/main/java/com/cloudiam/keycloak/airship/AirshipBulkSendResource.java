@@ -0,0 +1,205 @@
+package com.cloudiam.keycloak.airship;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ClientErrorException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RequiredActionProviderModel;
+import org.keycloak.protocol.oidc.utils.RedirectUtils;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Admin endpoint of the bulk send jobs, at {@code /realms/{realm}/airship-bulk-send/jobs}.
+ * <p>
+ * Requires a bearer token of the realm with the {@code manage-users} role of {@code realm-management}, or
+ * {@code view-users} to read the jobs.
+ */
+public class AirshipBulkSendResource implements RealmResourceProvider {
+
+    private static final String NDJSON = "application/x-ndjson";
+
+    private final KeycloakSession session;
+    private final AirshipBulkSendJobs jobs;
+
+    public AirshipBulkSendResource(KeycloakSession session, AirshipBulkSendJobs jobs) {
+        this.session = session;
+        this.jobs = jobs;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @POST
+    @Path("jobs")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response start(AirshipBulkSendRequest request) {
+        RealmModel realm = authorize(AdminRoles.MANAGE_USERS);
+        AirshipBulkSendRequest validated = validate(realm, request);
+        try {
+            AirshipBulkSendJob job = jobs.start(realm, validated, session.getContext().getUri());
+            return Response.status(Response.Status.ACCEPTED).entity(job.getStatus()).build();
+        } catch (IllegalStateException e) {
+            throw new ClientErrorException(e.getMessage(), Response.Status.CONFLICT);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create the bulk send job", e);
+        }
+    }
+
+    @GET
+    @Path("jobs")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<AirshipBulkSendJob.Status> list() {
+        RealmModel realm = authorize(AdminRoles.VIEW_USERS);
+        return jobs.list(realm).stream().map(AirshipBulkSendJob::getStatus).toList();
+    }
+
+    @GET
+    @Path("jobs/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public AirshipBulkSendJob.Status get(@PathParam("id") String id) {
+        return getJob(id, AdminRoles.VIEW_USERS).getStatus();
+    }
+
+    /**
+     * Streams the outcome of each user processed so far, one JSON object per line.
+     */
+    @GET
+    @Path("jobs/{id}/results")
+    @Produces(NDJSON)
+    public Response results(@PathParam("id") String id) {
+        AirshipBulkSendJob job = getJob(id, AdminRoles.VIEW_USERS);
+        StreamingOutput output = job::writeResults;
+        return Response.ok(output, NDJSON).build();
+    }
+
+    @POST
+    @Path("jobs/{id}/pause")
+    @Produces(MediaType.APPLICATION_JSON)
+    public AirshipBulkSendJob.Status pause(@PathParam("id") String id) {
+        AirshipBulkSendJob job = getJob(id, AdminRoles.MANAGE_USERS);
+        try {
+            job.pause();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to pause the bulk send job", e);
+        }
+        return job.getStatus();
+    }
+
+    @POST
+    @Path("jobs/{id}/resume")
+    @Produces(MediaType.APPLICATION_JSON)
+    public AirshipBulkSendJob.Status resume(@PathParam("id") String id) {
+        AirshipBulkSendJob job = getJob(id, AdminRoles.MANAGE_USERS);
+        try {
+            jobs.resume(job, session.getContext().getUri());
+        } catch (IllegalStateException e) {
+            throw new ClientErrorException(e.getMessage(), Response.Status.CONFLICT);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to resume the bulk send job", e);
+        }
+        return job.getStatus();
+    }
+
+    @DELETE
+    @Path("jobs/{id}")
+    public Response delete(@PathParam("id") String id) {
+        AirshipBulkSendJob job = getJob(id, AdminRoles.MANAGE_USERS);
+        try {
+            jobs.delete(job);
+        } catch (IllegalStateException e) {
+            throw new ClientErrorException(e.getMessage(), Response.Status.CONFLICT);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to delete the bulk send job", e);
+        }
+        return Response.noContent().build();
+    }
+
+    @Override
+    public void close() {
+        // Do nothing
+    }
+
+    private AirshipBulkSendJob getJob(String id, String role) {
+        AirshipBulkSendJob job = jobs.get(authorize(role), id);
+        if (job == null) {
+            throw new NotFoundException("Bulk send job not found");
+        }
+        return job;
+    }
+
+    private RealmModel authorize(String role) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        AccessToken.Access access = auth.getToken().getResourceAccess(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        boolean allowed = access != null && (access.isUserInRole(role) || access.isUserInRole(AdminRoles.MANAGE_USERS));
+        if (!allowed) {
+            throw new ForbiddenException("Missing role " + role);
+        }
+        return session.getContext().getRealm();
+    }
+
+    /**
+     * Checks the request like the admin {@code execute-actions-email} endpoint does, and fills in its defaults.
+     */
+    private AirshipBulkSendRequest validate(RealmModel realm, AirshipBulkSendRequest request) {
+        if (request == null || request.actions() == null || request.actions().isEmpty()) {
+            throw new BadRequestException("No required action to send");
+        }
+        if ((request.userIds() == null) == (request.search() == null && request.query() == null)) {
+            throw new BadRequestException("Either a user search or a list of user ids is required");
+        }
+        for (String action : request.actions()) {
+            RequiredActionProviderModel model = realm.getRequiredActionProviderByAlias(action);
+            if (model == null || !model.isEnabled()) {
+                throw new BadRequestException("Unknown or disabled required action: " + action);
+            }
+        }
+        if (request.redirectUri() != null && request.clientId() == null) {
+            throw new BadRequestException("Client id is required with a redirect uri");
+        }
+
+        String clientId = request.clientId() != null ? request.clientId() : Constants.ACCOUNT_MANAGEMENT_CLIENT_ID;
+        ClientModel client = realm.getClientByClientId(clientId);
+        if (client == null || !client.isEnabled()) {
+            throw new BadRequestException("Unknown or disabled client: " + clientId);
+        }
+        String redirectUri = null;
+        if (request.redirectUri() != null) {
+            redirectUri = RedirectUtils.verifyRedirectUri(session, request.redirectUri(), client);
+            if (redirectUri == null) {
+                throw new BadRequestException("Invalid redirect uri");
+            }
+        }
+        int lifespan = request.lifespan() != null ? request.lifespan() : realm.getActionTokenGeneratedByAdminLifespan();
+        return new AirshipBulkSendRequest(request.actions(), lifespan, clientId, redirectUri, request.search(), request.query(),
+                request.userIds(), request.parallelism());
+    }
+}
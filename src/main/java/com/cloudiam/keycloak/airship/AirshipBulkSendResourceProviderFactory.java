@@ -0,0 +1,64 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+import java.nio.file.Path;
+
+public class AirshipBulkSendResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "airship-bulk-send";
+    private static final Logger LOGGER = Logger.getLogger(AirshipBulkSendResourceProviderFactory.class);
+    private static final String DATA_DIR_PROPERTY = "jboss.server.data.dir";
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int DEFAULT_MAX_PARALLELISM = 8;
+    private static final int DEFAULT_MAX_RUNNING_JOBS = 1;
+    private AirshipBulkSendJobs jobs;
+
+    @Override
+    public void init(Config.Scope config) {
+        // Jobs are kept in the Keycloak data directory by default, so that they survive a restart
+        String dataDirectory = System.getProperty(DATA_DIR_PROPERTY, System.getProperty("java.io.tmpdir"));
+        Path directory = Path.of(getEnvOrDefault("AIRSHIP_BULK_SEND_DIR", Path.of(dataDirectory, PROVIDER_ID).toString()));
+        int pageSize = getIntEnvOrDefault("AIRSHIP_BULK_SEND_PAGE_SIZE", DEFAULT_PAGE_SIZE);
+        int maxParallelism = getIntEnvOrDefault("AIRSHIP_BULK_SEND_MAX_PARALLELISM", DEFAULT_MAX_PARALLELISM);
+        int maxRunningJobs = getIntEnvOrDefault("AIRSHIP_BULK_SEND_MAX_RUNNING_JOBS", DEFAULT_MAX_RUNNING_JOBS);
+        this.jobs = new AirshipBulkSendJobs(directory, pageSize, maxParallelism, maxRunningJobs);
+        LOGGER.infof("Bulk send: directory=%s, pageSize=%d, maxParallelism=%d, maxRunningJobs=%d", directory, pageSize, maxParallelism, maxRunningJobs);
+    }
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new AirshipBulkSendResource(session, jobs);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        jobs.load(keycloakSessionFactory);
+    }
+
+    @Override
+    public void close() {
+        if (jobs != null) {
+            jobs.close();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    private static String getEnvOrDefault(String envVar, String defaultValue) {
+        String value = System.getenv(envVar);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    private static int getIntEnvOrDefault(String envVar, int defaultValue) {
+        return Integer.parseInt(getEnvOrDefault(envVar, String.valueOf(defaultValue)));
+    }
+}
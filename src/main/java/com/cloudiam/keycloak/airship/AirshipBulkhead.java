@@ -0,0 +1,97 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resources isolating the emails of a realm, or of a group of realms, from the others: its own connection pool,
+ * concurrency limit, circuit breaker, retry budget, send queue and outbox. A realm sending a flood of emails only
+ * exhausts its own bulkhead.
+ */
+public class AirshipBulkhead implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipBulkhead.class);
+
+    private final String name;
+    private final AirshipHttpClient httpClient;
+    private final AirshipOutbox outbox;
+    private final AirshipDispatcher dispatcher;
+    private final AirshipSendQueue sendQueue;
+    private final Duration replayInterval;
+    private ScheduledExecutorService replayScheduler;
+    private volatile AirshipAccount account;
+
+    /**
+     * @param outbox         outbox of the bulkhead, or {@code null} when disabled
+     * @param sendQueue      send queue of the bulkhead, or {@code null} to send synchronously
+     * @param replayInterval how often the emails of the outbox that could not be sent are replayed
+     */
+    public AirshipBulkhead(String name, AirshipAccount account, AirshipHttpClient httpClient, AirshipOutbox outbox,
+                           AirshipDispatcher dispatcher, AirshipSendQueue sendQueue, Duration replayInterval) {
+        this.name = name;
+        this.account = account;
+        this.httpClient = httpClient;
+        this.outbox = outbox;
+        this.dispatcher = dispatcher;
+        this.sendQueue = sendQueue;
+        this.replayInterval = replayInterval;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public AirshipAccount getAccount() {
+        return account;
+    }
+
+    public AirshipDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public AirshipSendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * Switches the bulkhead to another account, such as after its access token was rotated.
+     */
+    public void update(AirshipAccount account) {
+        if (!account.equals(this.account)) {
+            LOGGER.infof("Airship account of bulkhead %s changed: %s", name, account);
+            this.account = account;
+            httpClient.update(account);
+        }
+    }
+
+    /**
+     * Opens the connection to Airship and sends again the emails left in the outbox, in the background, then the ones
+     * that could not be sent on each replay interval.
+     */
+    public void start() {
+        httpClient.warmUp();
+        if (outbox != null) {
+            replayScheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("airship-outbox-replay-" + name).factory());
+            replayScheduler.scheduleWithFixedDelay(dispatcher::replay, 0, replayInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (replayScheduler != null) {
+            replayScheduler.shutdownNow();
+        }
+        if (sendQueue != null) {
+            sendQueue.close();
+        }
+        dispatcher.close();
+        if (outbox != null) {
+            outbox.close();
+        }
+        httpClient.close();
+    }
+}
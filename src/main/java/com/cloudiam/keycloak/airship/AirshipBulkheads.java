@@ -0,0 +1,215 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+import org.keycloak.vault.VaultStringSecret;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Bulkhead and Airship account of each realm.
+ * <p>
+ * A realm uses the account of the environment unless it sets its own app key in the {@code airship.appKey} attribute,
+ * the other settings then default to the environment ones. Realms with their own account get their own bulkhead, named
+ * after the realm, and realms can share a bulkhead by naming it in the {@code airship.bulkhead} attribute. Realms using
+ * the account of the environment send through the default bulkhead, unless they name another one. A bulkhead
+ * is identified by its name and app key, so realms naming the same bulkhead with different app keys, or a realm named
+ * like the default bulkhead, never share a bulkhead, nor its credentials. Realms of the same bulkhead and app key share
+ * its credentials, the last ones resolved apply, such as after a rotation of the access token.
+ * <p>
+ * A realm authenticates with its own OAuth client when it sets {@code airship.oauthClientId}, with its own static access
+ * token when it sets {@code airship.accessToken}, and otherwise with the credentials of the environment, only allowed
+ * when its app key is the one of the environment, since they are issued for that app. Access tokens
+ * and client secrets can reference the Keycloak vault, such as {@code ${vault.airship-token}}. Realms are resolved once
+ * and again after their attributes are updated. A bulkhead no realm sends through anymore, after an update or the
+ * removal of its realms, is closed; the emails left in its outbox are sent once a realm uses it again.
+ */
+public class AirshipBulkheads implements ProviderEventListener, AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipBulkheads.class);
+
+    public static final String DEFAULT_BULKHEAD = "default";
+    public static final String APP_KEY_ATTRIBUTE = "airship.appKey";
+    public static final String ACCESS_TOKEN_ATTRIBUTE = "airship.accessToken";
+    public static final String ENDPOINT_ATTRIBUTE = "airship.endpoint";
+    public static final String DOMAIN_ATTRIBUTE = "airship.domain";
+    public static final String HEADER_ATTRIBUTE = "airship.header";
+    public static final String BULKHEAD_ATTRIBUTE = "airship.bulkhead";
+    public static final String OAUTH_CLIENT_ID_ATTRIBUTE = "airship.oauthClientId";
+    public static final String OAUTH_CLIENT_SECRET_ATTRIBUTE = "airship.oauthClientSecret";
+    public static final String OAUTH_TOKEN_URL_ATTRIBUTE = "airship.oauthTokenUrl";
+    public static final String OAUTH_SCOPE_ATTRIBUTE = "airship.oauthScope";
+
+    private static final Key DEFAULT_KEY = new Key(DEFAULT_BULKHEAD, null);
+
+    private final AirshipAccount defaultAccount;
+    private final BiFunction<String, AirshipAccount, AirshipBulkhead> factory;
+    private final Map<Key, AirshipBulkhead> bulkheads = new ConcurrentHashMap<>();
+    private final Map<String, Realm> realms = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultAccount account of the environment
+     * @param factory        creates the bulkhead of the given unique name and account, the first time it is used
+     */
+    public AirshipBulkheads(AirshipAccount defaultAccount, BiFunction<String, AirshipAccount, AirshipBulkhead> factory) {
+        this.defaultAccount = defaultAccount;
+        this.factory = factory;
+    }
+
+    public AirshipBulkhead getDefault() {
+        return get(DEFAULT_KEY, defaultAccount);
+    }
+
+    public AirshipBulkhead get(KeycloakSession session, RealmModel realm) {
+        Realm current = realms.get(realm.getId());
+        if (current != null && !current.stale()) {
+            return current.bulkhead();
+        }
+        // Resolutions are serialized, so that a bulkhead is never closed while another realm is being resolved to it
+        synchronized (this) {
+            AirshipBulkhead[] replaced = new AirshipBulkhead[1];
+            // Atomic with the events of the realm, an update marks the resolved bulkhead stale rather than being lost
+            Realm resolved = realms.compute(realm.getId(), (id, previous) -> {
+                if (previous != null && !previous.stale()) {
+                    return previous;
+                }
+                replaced[0] = previous == null ? null : previous.bulkhead();
+                return new Realm(resolve(session, realm), false);
+            });
+            if (replaced[0] != null && replaced[0] != resolved.bulkhead()) {
+                closeIfUnused(replaced[0]);
+            }
+            return resolved.bulkhead();
+        }
+    }
+
+    @Override
+    public void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmAttributeUpdateEvent updated) {
+            // The bulkhead stays in use until the realm is resolved again, which may keep it
+            realms.computeIfPresent(updated.getRealm().getId(), (id, realm) -> new Realm(realm.bulkhead(), true));
+        } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+            synchronized (this) {
+                Realm realm = realms.remove(removed.getRealm().getId());
+                if (realm != null) {
+                    closeIfUnused(realm.bulkhead());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        bulkheads.values().forEach(AirshipBulkhead::close);
+        bulkheads.clear();
+        realms.clear();
+    }
+
+    private AirshipBulkhead resolve(KeycloakSession session, RealmModel realm) {
+        String appKey = realm.getAttribute(APP_KEY_ATTRIBUTE);
+        if (appKey == null || appKey.isEmpty()) {
+            String name = getAttribute(realm, BULKHEAD_ATTRIBUTE, DEFAULT_BULKHEAD);
+            if (name.equals(DEFAULT_BULKHEAD)) {
+                return getDefault();
+            }
+            LOGGER.infof("Realm %s sends emails through bulkhead %s with the account of the environment", realm.getName(), name);
+            return get(new Key(name, null), defaultAccount);
+        }
+
+        String accessToken = defaultAccount.accessToken();
+        AirshipAccount.OAuth oauth = defaultAccount.oauth();
+        String oauthClientId = getAttribute(realm, OAUTH_CLIENT_ID_ATTRIBUTE, null);
+        String realmAccessToken = getAttribute(realm, ACCESS_TOKEN_ATTRIBUTE, null);
+        if (oauthClientId == null && realmAccessToken == null && !appKey.equals(defaultAccount.appKey())) {
+            throw new IllegalStateException("Realm " + realm.getName() + " sets its own Airship app key without credentials, set "
+                    + ACCESS_TOKEN_ATTRIBUTE + " or " + OAUTH_CLIENT_ID_ATTRIBUTE);
+        }
+        if (oauthClientId != null) {
+            String defaultTokenUrl = oauth != null ? oauth.tokenUrl() : AirshipEmailFactory.DEFAULT_AIRSHIP_OAUTH_TOKEN_URL;
+            oauth = new AirshipAccount.OAuth(
+                    oauthClientId,
+                    getSecret(session, realm.getAttribute(OAUTH_CLIENT_SECRET_ATTRIBUTE)),
+                    getAttribute(realm, OAUTH_TOKEN_URL_ATTRIBUTE, defaultTokenUrl),
+                    getAttribute(realm, OAUTH_SCOPE_ATTRIBUTE, oauth != null ? oauth.scope() : null));
+        } else if (realmAccessToken != null) {
+            accessToken = getSecret(session, realmAccessToken);
+            oauth = null;
+        }
+
+        var account = new AirshipAccount(
+                getAttribute(realm, DOMAIN_ATTRIBUTE, defaultAccount.domain()),
+                getAttribute(realm, ENDPOINT_ATTRIBUTE, defaultAccount.endpoint()),
+                getAttribute(realm, HEADER_ATTRIBUTE, defaultAccount.header()),
+                accessToken,
+                appKey,
+                oauth);
+        var key = new Key(getAttribute(realm, BULKHEAD_ATTRIBUTE, realm.getName()), appKey);
+        LOGGER.infof("Realm %s sends emails through bulkhead %s with %s", realm.getName(), key.uniqueName(), account);
+        return get(key, account);
+    }
+
+    /**
+     * Closes a bulkhead no realm sends through anymore, other than the default one.
+     */
+    private void closeIfUnused(AirshipBulkhead bulkhead) {
+        if (realms.values().stream().anyMatch(realm -> realm.bulkhead() == bulkhead)) {
+            return;
+        }
+        for (Map.Entry<Key, AirshipBulkhead> entry : bulkheads.entrySet()) {
+            if (entry.getValue() == bulkhead && !entry.getKey().equals(DEFAULT_KEY)) {
+                bulkheads.remove(entry.getKey());
+                LOGGER.infof("Closing Airship bulkhead %s, no realm sends through it anymore", entry.getKey().uniqueName());
+                bulkhead.close();
+                return;
+            }
+        }
+    }
+
+    private AirshipBulkhead get(Key key, AirshipAccount account) {
+        AirshipBulkhead bulkhead = bulkheads.computeIfAbsent(key, ignored -> {
+            AirshipBulkhead created = factory.apply(key.uniqueName(), account);
+            created.start();
+            return created;
+        });
+        bulkhead.update(account);
+        return bulkhead;
+    }
+
+    /**
+     * Bulkhead a realm was resolved to, stale once the attributes of the realm are updated.
+     */
+    private record Realm(AirshipBulkhead bulkhead, boolean stale) {
+    }
+
+    /**
+     * @param appKey app key of the realms of the bulkhead, {@code null} for the bulkheads using the account of the environment
+     */
+    private record Key(String name, String appKey) {
+
+        /**
+         * Name of the bulkhead in its metrics, threads and outbox directory.
+         */
+        String uniqueName() {
+            return appKey == null ? name : name + "/" + appKey;
+        }
+    }
+
+    private static String getAttribute(RealmModel realm, String name, String defaultValue) {
+        String value = realm.getAttribute(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    private static String getSecret(KeycloakSession session, String value) {
+        if (value == null) {
+            return null;
+        }
+        try (VaultStringSecret secret = session.vault().getStringSecret(value)) {
+            return secret.get().orElse(value);
+        }
+    }
+}
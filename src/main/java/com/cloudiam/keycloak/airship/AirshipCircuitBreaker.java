@@ -0,0 +1,185 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+
+/**
+ * Circuit breaker around Airship calls, computed over a sliding window of the last calls.
+ * <p>
+ * The circuit opens when the rate of failed or slow calls in the window crosses its threshold. While open, calls fail
+ * fast. After the open duration, a few probe calls are let through: the circuit closes if they succeed, and opens
+ * again otherwise. Each permit carries the generation of the state it was granted in, so that the result of a call
+ * started before a transition is not counted against the new state.
+ */
+public class AirshipCircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipCircuitBreaker.class);
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    /**
+     * Permit returned by {@link #tryAcquire()} when the call must not be made.
+     */
+    public static final long REJECTED = -1;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final byte[] window;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long slowCallNanos;
+    private final int slowCallRateThreshold;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    private State state = State.CLOSED;
+    // Incremented on each state transition
+    private long generation;
+    private int recorded;
+    private int next;
+    private int failed;
+    private int slow;
+    private long openUntil;
+    private int probesStarted;
+    private int probesCompleted;
+    private int probesFailed;
+
+    /**
+     * @param failureRateThreshold  percentage of failed calls in the window that opens the circuit
+     * @param slowCallRateThreshold percentage of slow calls in the window that opens the circuit
+     */
+    public AirshipCircuitBreaker(int windowSize, int minimumCalls, int failureRateThreshold, Duration slowCallDuration,
+                                 int slowCallRateThreshold, Duration openDuration, int halfOpenCalls) {
+        this.window = new byte[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = slowCallDuration.toNanos();
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Whether a call may be made now. Each permitted call must be followed by {@link #onResult} or
+     * {@link #onCancelled}.
+     *
+     * @return the permit of the call, or {@link #REJECTED}
+     */
+    public synchronized long tryAcquire() {
+        return switch (refreshState()) {
+            case CLOSED -> generation;
+            case HALF_OPEN -> {
+                if (probesStarted < halfOpenCalls) {
+                    probesStarted++;
+                    yield generation;
+                }
+                yield REJECTED;
+            }
+            case OPEN -> REJECTED;
+        };
+    }
+
+    /**
+     * Gives back a permit for a call that was not made.
+     */
+    public synchronized void onCancelled(long permit) {
+        if (permit == generation && state == State.HALF_OPEN && probesStarted > probesCompleted) {
+            probesStarted--;
+        }
+    }
+
+    /**
+     * Whether calls are currently failing fast, without taking a probe permit.
+     */
+    public synchronized boolean isOpen() {
+        return refreshState() == State.OPEN;
+    }
+
+    public synchronized State getState() {
+        return refreshState();
+    }
+
+    /**
+     * @param permit        permit of the call
+     * @param durationNanos duration of the call
+     * @param failure       whether the call failed because of Airship or the network
+     */
+    public synchronized void onResult(long permit, long durationNanos, boolean failure) {
+        refreshState();
+        if (permit != generation) {
+            // Call started before the last transition, such as a call of the closed circuit ending after it opened
+            return;
+        }
+        boolean slowCall = durationNanos >= slowCallNanos;
+        switch (state) {
+            case CLOSED -> {
+                record((byte) ((failure ? FAILED : 0) | (slowCall ? SLOW : 0)));
+                if (recorded >= minimumCalls
+                        && (failed * 100 >= failureRateThreshold * recorded || slow * 100 >= slowCallRateThreshold * recorded)) {
+                    LOGGER.warnf("Opening Airship circuit: %d failed and %d slow calls out of %d", failed, slow, recorded);
+                    open();
+                }
+            }
+            case HALF_OPEN -> {
+                probesCompleted++;
+                if (failure || slowCall) {
+                    probesFailed++;
+                }
+                if (probesFailed * 100 >= failureRateThreshold * halfOpenCalls) {
+                    LOGGER.warn("Airship circuit probes failed, opening the circuit again");
+                    open();
+                } else if (probesCompleted >= halfOpenCalls) {
+                    LOGGER.info("Airship circuit probes succeeded, closing the circuit");
+                    close();
+                }
+            }
+            default -> {
+                // No call is permitted while open
+            }
+        }
+    }
+
+    private State refreshState() {
+        if (state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+            state = State.HALF_OPEN;
+            generation++;
+            probesStarted = 0;
+            probesCompleted = 0;
+            probesFailed = 0;
+        }
+        return state;
+    }
+
+    private void record(byte outcome) {
+        if (recorded == window.length) {
+            byte evicted = window[next];
+            failed -= evicted & FAILED;
+            slow -= (evicted & SLOW) >> 1;
+        } else {
+            recorded++;
+        }
+        window[next] = outcome;
+        failed += outcome & FAILED;
+        slow += (outcome & SLOW) >> 1;
+        next = (next + 1) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        generation++;
+        openUntil = System.nanoTime() + openNanos;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        generation++;
+        recorded = 0;
+        next = 0;
+        failed = 0;
+        slow = 0;
+    }
+}
@@ -0,0 +1,11 @@
+package com.cloudiam.keycloak.airship;
+
+/**
+ * Airship call rejected by the circuit breaker, the email was not handed to Airship.
+ */
+public class AirshipCircuitOpenException extends AirshipRejectedException {
+
+    public AirshipCircuitOpenException() {
+        super("Airship circuit is open, email not sent");
+    }
+}
@@ -0,0 +1,109 @@
+package com.cloudiam.keycloak.airship;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies for the {@code Content-Encoding} header.
+ * <p>
+ * Each {@link Deflater} holds native memory until it is ended, so they are pooled and reused across requests instead
+ * of being created for each one.
+ */
+public class AirshipCompressor {
+
+    private static final int MAX_POOLED_DEFLATERS = 64;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    public enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String header;
+
+        Encoding(String header) {
+            this.header = header;
+        }
+
+        public String header() {
+            return header;
+        }
+    }
+
+    private final Encoding encoding;
+    private final int level;
+    private final int threshold;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_POOLED_DEFLATERS);
+
+    /**
+     * @param level     compression level, from 1 (fastest) to 9 (smallest)
+     * @param threshold size in bytes below which payloads are sent uncompressed
+     */
+    public AirshipCompressor(Encoding encoding, int level, int threshold) {
+        this.encoding = encoding;
+        this.level = level;
+        this.threshold = threshold;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return the compressed payload, or {@code null} when the payload is below the threshold or would not shrink
+     */
+    public AirshipPayload compress(AirshipPayload payload) {
+        if (payload.length() < threshold) {
+            return null;
+        }
+
+        boolean gzip = encoding == Encoding.GZIP;
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            // gzip carries a raw deflate stream, while the deflate encoding is a zlib stream
+            deflater = new Deflater(level, gzip);
+        }
+        try {
+            // Compressing is only worth it if the result is smaller than the payload
+            byte[] bytes = new byte[payload.length()];
+            int limit = bytes.length - (gzip ? GZIP_TRAILER_SIZE : 0);
+            int offset = 0;
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, bytes, 0, GZIP_HEADER.length);
+                offset = GZIP_HEADER.length;
+            }
+
+            deflater.setInput(payload.bytes(), 0, payload.length());
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (offset >= limit) {
+                    return null;
+                }
+                offset += deflater.deflate(bytes, offset, limit - offset);
+            }
+
+            if (gzip) {
+                var crc = new CRC32();
+                crc.update(payload.bytes(), 0, payload.length());
+                offset = writeIntLittleEndian(bytes, offset, (int) crc.getValue());
+                offset = writeIntLittleEndian(bytes, offset, payload.length());
+            }
+            return new AirshipPayload(bytes, offset);
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    private static int writeIntLittleEndian(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+}
@@ -0,0 +1,144 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit on the number of concurrent Airship calls.
+ * <p>
+ * The limit follows a gradient of latencies: it grows while the recent latency stays close to the long-term one and
+ * the limit is actually used, shrinks smoothly when latency rises, and is halved when Airship rate limits us or a call
+ * times out. Calls above the limit wait for a permit up to a bounded time, then fail.
+ */
+public class AirshipConcurrencyLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipConcurrencyLimiter.class);
+
+    private static final double SHORT_RTT_ALPHA = 0.2;
+    private static final double LONG_RTT_ALPHA = 0.01;
+    private static final double LATENCY_TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final int QUEUE_HEADROOM = 4;
+    private static final double DROP_BACKOFF = 0.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxWaitNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final LongAdder rejected = new LongAdder();
+
+    private double limit;
+    private int inFlight;
+    private double shortRttNanos;
+    private double longRttNanos;
+
+    public AirshipConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, Duration maxWait) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    /**
+     * Waits for a permit to call Airship.
+     *
+     * @return {@link System#nanoTime()} when the permit was granted, to be passed to {@link #release}
+     */
+    public long acquire() throws EmailException {
+        lock.lock();
+        try {
+            long remaining = maxWaitNanos;
+            while (inFlight >= (int) limit) {
+                if (remaining <= 0) {
+                    rejected.increment();
+                    throw new AirshipRejectedException("Too many concurrent Airship calls, limit is " + (int) limit);
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            inFlight++;
+            return System.nanoTime();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AirshipRejectedException("Interrupted while waiting for an Airship call permit", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a permit and adjusts the limit from the outcome of the call.
+     *
+     * @param startNanos value returned by {@link #acquire()}
+     * @param dropped    whether Airship rate limited the call or it timed out
+     */
+    public void release(long startNanos, boolean dropped) {
+        onCallCompleted(System.nanoTime() - startNanos, dropped);
+    }
+
+    void onCallCompleted(long rtt, boolean dropped) {
+        lock.lock();
+        try {
+            int utilization = inFlight;
+            inFlight--;
+            double previous = limit;
+            if (dropped) {
+                limit = Math.max(minLimit, limit * DROP_BACKOFF);
+            } else {
+                adjust(rtt, utilization);
+            }
+            if ((int) limit != (int) previous) {
+                LOGGER.debugf("Airship concurrency limit changed from %d to %d", (int) previous, (int) limit);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adjust(long rtt, int utilization) {
+        if (longRttNanos == 0) {
+            shortRttNanos = rtt;
+            longRttNanos = rtt;
+            return;
+        }
+        shortRttNanos += (rtt - shortRttNanos) * SHORT_RTT_ALPHA;
+        longRttNanos += (rtt - longRttNanos) * LONG_RTT_ALPHA;
+
+        // Do not grow a limit that is not used, it would not be backed by any measure
+        if (utilization < limit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, LATENCY_TOLERANCE * longRttNanos / shortRttNanos));
+        double target = limit * gradient + QUEUE_HEADROOM;
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,110 @@
+package com.cloudiam.keycloak.airship;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the emails sent recently to suppress identical ones, such as repeated clicks on "resend email".
+ * <p>
+ * Only a 64-bit digest of each email is kept, for at most the window duration and up to a maximum number of emails.
+ */
+public class AirshipDeduplicator {
+
+    public enum Key {
+        /** Emails are identical when their recipient, subject and bodies, or template substitutions, are. */
+        CONTENT,
+        /**
+         * Emails are identical when their recipient and subject, or template, are, since bodies often differ only by a
+         * fresh action token.
+         */
+        SUBJECT
+    }
+
+    private static final byte SEPARATOR = 0;
+
+    private final long windowNanos;
+    private final int maxEntries;
+    private final Key key;
+    // Digests in the order they were sent, so that expired ones are at the head
+    private final LinkedHashMap<Long, Long> sent = new LinkedHashMap<>();
+
+    public AirshipDeduplicator(Duration window, int maxEntries, Key key) {
+        this.windowNanos = window.toNanos();
+        this.maxEntries = maxEntries;
+        this.key = key;
+    }
+
+    public long digest(AirshipEmailMessage message) {
+        MessageDigest digest = sha256();
+        update(digest, message.address());
+        update(digest, message.subject());
+        update(digest, message.templateId());
+        if (key == Key.CONTENT) {
+            update(digest, message.textBody());
+            update(digest, message.htmlBody());
+            for (Map.Entry<String, String> substitution : new TreeMap<>(message.substitutions()).entrySet()) {
+                update(digest, substitution.getKey());
+                update(digest, substitution.getValue());
+            }
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Records the email as sent, unless an identical one was sent within the window.
+     *
+     * @return whether the email should be sent
+     */
+    public synchronized boolean tryAcquire(long digest) {
+        long now = System.nanoTime();
+        evictExpired(now);
+        if (sent.containsKey(digest)) {
+            return false;
+        }
+        sent.put(digest, now);
+        if (sent.size() > maxEntries) {
+            sent.pollFirstEntry();
+        }
+        return true;
+    }
+
+    /**
+     * Forgets an email that could not be sent, so that it can be sent again right away.
+     */
+    public synchronized void release(long digest) {
+        sent.remove(digest);
+    }
+
+    public synchronized int size() {
+        return sent.size();
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Map.Entry<Long, Long>> iterator = sent.entrySet().iterator();
+        while (iterator.hasNext() && now - iterator.next().getValue() >= windowNanos) {
+            iterator.remove();
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update(SEPARATOR);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
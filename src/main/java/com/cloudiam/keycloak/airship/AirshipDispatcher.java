@@ -0,0 +1,268 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends serialized payloads to Airship, independently of any Keycloak session.
+ */
+public class AirshipDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipDispatcher.class);
+
+    /**
+     * Sends an email by other means when the circuit breaker rejects its Airship call.
+     */
+    @FunctionalInterface
+    public interface Fallback {
+
+        void send(AirshipEmailMessage message) throws EmailException;
+    }
+
+    private final AirshipHttpClient httpClient;
+    private final AirshipOutbox outbox;
+    private final AirshipRetryPolicy retryPolicy;
+    private final AirshipRateLimiter rateLimiter;
+    private final AirshipConcurrencyLimiter concurrencyLimiter;
+    private final AirshipCircuitBreaker circuitBreaker;
+    private final AirshipMetrics metrics;
+    private final AirshipBatcher batcher;
+
+    /**
+     * @param outbox       durable log of the emails being sent, or {@code null} to keep them in memory only
+     * @param rateLimiter  cluster-wide rate limit of Airship calls, or {@code null} for no limit
+     * @param batchMaxSize maximum number of emails posted in a single request, 1 to disable batching
+     * @param batchWindow  how long the first email of a batch waits for others
+     */
+    public AirshipDispatcher(AirshipHttpClient httpClient, AirshipOutbox outbox, AirshipRetryPolicy retryPolicy,
+                             AirshipRateLimiter rateLimiter, AirshipConcurrencyLimiter concurrencyLimiter, AirshipCircuitBreaker circuitBreaker,
+                             AirshipMetrics metrics, int batchMaxSize, Duration batchWindow) {
+        this.httpClient = httpClient;
+        this.outbox = outbox;
+        this.retryPolicy = retryPolicy;
+        this.rateLimiter = rateLimiter;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.circuitBreaker = circuitBreaker;
+        this.metrics = metrics;
+        this.batcher = batchMaxSize > 1 ? new AirshipBatcher(batchMaxSize, batchWindow, this::post, metrics) : null;
+    }
+
+    /**
+     * Gives back the rate limit tokens leased by this node and not spent yet.
+     */
+    public void close() {
+        if (rateLimiter != null) {
+            rateLimiter.close();
+        }
+    }
+
+    /**
+     * Whether Airship calls are currently failing fast.
+     */
+    public boolean isCircuitOpen() {
+        return circuitBreaker.isOpen();
+    }
+
+    /**
+     * Sends the payload on the calling thread, the outcome is reported to the caller. An email kept in the outbox for a
+     * replay is not reported as failed.
+     *
+     * @param payloadWriter writer of the payload, used to merge it with other emails of the same content
+     * @param fallback      fallback of the email when the circuit rejects it, or {@code null}
+     */
+    public void send(AirshipPayloadWriter payloadWriter, AirshipEmailMessage message, AirshipPayload payload, Fallback fallback) throws EmailException {
+        long id = outbox == null ? -1 : outbox.append(payload);
+        deliverDurably(id, payloadWriter, message, payload, fallback);
+    }
+
+    /**
+     * Creates a delivery that is recorded in the outbox as soon as it is accepted by the send queue, and that stays
+     * there for a replay if Airship cannot be reached.
+     */
+    public AirshipSendQueue.Delivery deferred(AirshipPayloadWriter payloadWriter, AirshipEmailMessage message, AirshipPayload payload, Fallback fallback) {
+        return new AirshipSendQueue.Delivery() {
+            private long id = -1;
+
+            @Override
+            public void accepted() {
+                if (outbox != null) {
+                    id = outbox.append(payload);
+                }
+            }
+
+            @Override
+            public void deliver() throws EmailException {
+                deliverDurably(id, payloadWriter, message, payload, fallback);
+            }
+        };
+    }
+
+    /**
+     * Sends again the emails of the outbox that could not be delivered, or were left pending by a previous run. Stops
+     * early while the circuit is open, the remaining emails wait for the next replay.
+     */
+    public void replay() {
+        if (outbox == null) {
+            return;
+        }
+        List<Map.Entry<Long, AirshipPayload>> released = outbox.takeReleased();
+        if (released.isEmpty()) {
+            return;
+        }
+        LOGGER.infof("Replaying %d emails from the Airship outbox", released.size());
+        for (int i = 0; i < released.size(); i++) {
+            Map.Entry<Long, AirshipPayload> entry = released.get(i);
+            try {
+                // Replayed emails are already serialized, they are posted as they are
+                deliverDurably(entry.getKey(), null, null, entry.getValue(), null);
+            } catch (EmailException | RuntimeException e) {
+                LOGGER.warnf("Failed to replay email #%d from the Airship outbox: %s", entry.getKey(), e.getMessage());
+            }
+            if (circuitBreaker.isOpen()) {
+                released.subList(i + 1, released.size()).forEach(remaining -> outbox.release(remaining.getKey()));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Dispatches an email recorded in the outbox. The email is acknowledged once sent, sent by the fallback, or failed
+     * in a way that is not safe to send again. It is released for a replay otherwise, and then counts as sent for its
+     * caller, so that it is not sent another way too.
+     */
+    private void deliverDurably(long id, AirshipPayloadWriter payloadWriter, AirshipEmailMessage message, AirshipPayload payload,
+                                Fallback fallback) throws EmailException {
+        if (outbox == null || id < 0) {
+            dispatchOrFallBack(payloadWriter, message, payload, fallback);
+            return;
+        }
+        try {
+            dispatchOrFallBack(payloadWriter, message, payload, fallback);
+        } catch (EmailException e) {
+            if (retryPolicy.isReplayable(e)) {
+                outbox.release(id);
+                LOGGER.warnf("Airship email #%d not sent, kept in the outbox for a replay: %s", id, e.getMessage());
+                return;
+            }
+            // Airship rejected the email for good, or may have processed it
+            outbox.ack(id);
+            LOGGER.errorf("Airship email #%d not sent, dropped from the outbox: %s", id, e.getMessage());
+            throw e;
+        } catch (RuntimeException | Error e) {
+            outbox.ack(id);
+            LOGGER.errorf("Airship email #%d not sent, dropped from the outbox: %s", id, e.getMessage());
+            throw e;
+        }
+        outbox.ack(id);
+    }
+
+    private void dispatchOrFallBack(AirshipPayloadWriter payloadWriter, AirshipEmailMessage message, AirshipPayload payload,
+                                    Fallback fallback) throws EmailException {
+        try {
+            dispatch(payloadWriter, message, payload);
+        } catch (AirshipCircuitOpenException e) {
+            if (fallback == null) {
+                throw e;
+            }
+            LOGGER.warnf("Airship circuit rejected the email to %s, sending it through the fallback", message.address());
+            fallback.send(message);
+        }
+    }
+
+    private void dispatch(AirshipPayloadWriter payloadWriter, AirshipEmailMessage message, AirshipPayload payload) throws EmailException {
+        if (message == null) {
+            post("replayed email", payload, 1);
+        } else if (batcher != null) {
+            batcher.send(payloadWriter, message, payload);
+        } else {
+            post(message.address(), payload, 1);
+        }
+    }
+
+    /**
+     * @param emails number of emails sent by the payload, each takes a token of the rate limit
+     */
+    private void post(String description, AirshipPayload payload, int emails) throws EmailException {
+        long start = System.nanoTime();
+        retryPolicy.onSend();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                postOnce(description, payload, emails);
+                metrics.recordSend(System.nanoTime() - start, true);
+                return;
+            } catch (EmailException e) {
+                Duration delay = retryPolicy.nextDelay(attempt, e, start);
+                if (delay == null) {
+                    metrics.recordSend(System.nanoTime() - start, false);
+                    throw e;
+                }
+                LOGGER.warnf("Airship send attempt %d failed, retrying in %d ms: %s", attempt, delay.toMillis(), e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void postOnce(String description, AirshipPayload payload, int emails) throws EmailException {
+        long circuitPermit = circuitBreaker.tryAcquire();
+        if (circuitPermit == AirshipCircuitBreaker.REJECTED) {
+            throw new AirshipCircuitOpenException();
+        }
+        long permit;
+        try {
+            if (rateLimiter != null) {
+                rateLimiter.acquire(emails);
+            }
+            permit = concurrencyLimiter.acquire();
+        } catch (EmailException e) {
+            circuitBreaker.onCancelled(circuitPermit);
+            throw e;
+        }
+
+        boolean dropped = false;
+        boolean failed = false;
+        try {
+            LOGGER.debug("******** START AIRSHIP EMAIL SENDING ********");
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.tracef("Request payload: %s", payload.asString());
+            }
+
+            LOGGER.debug("Sending HTTP request to Airship");
+            HttpResponse<String> response = httpClient.send(payload);
+            metrics.recordResponse(response.statusCode());
+            dropped = response.statusCode() == 429;
+            failed = response.statusCode() == 408 || response.statusCode() >= 500;
+
+            if (response.statusCode() >= 400) {
+                LOGGER.errorf("Failed to send email. Response code: %s, body: %s", response.statusCode(), response.body());
+                Duration retryAfter = AirshipRetryPolicy.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null));
+                throw new AirshipApiException(response.statusCode(), response.body(), retryAfter);
+            }
+
+            LOGGER.debugf("******** AIRSHIP EMAIL SENT SUCCESSFULLY to %s", description);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailException("Interrupted while sending email via Airship", e);
+        } catch (IOException e) {
+            dropped = e instanceof HttpTimeoutException;
+            failed = true;
+            metrics.recordError(e);
+            LOGGER.error("Failed to send email via Airship", e);
+            throw new EmailException("Failed to send email via Airship", e);
+        } finally {
+            concurrencyLimiter.release(permit, dropped);
+            circuitBreaker.onResult(circuitPermit, System.nanoTime() - permit, failed);
+        }
+    }
+}
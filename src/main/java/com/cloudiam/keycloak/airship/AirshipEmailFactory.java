@@ -1,74 +1,301 @@
 package com.cloudiam.keycloak.airship;
 
+import io.micrometer.core.instrument.Metrics;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
 import org.keycloak.email.EmailSenderProvider;
 import org.keycloak.email.EmailSenderProviderFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class AirshipEmailFactory implements EmailSenderProviderFactory {
 
     public static final String PROVIDER_ID = "keycloak-airship-provider";
     private static final Logger LOGGER = Logger.getLogger(AirshipEmailFactory.class);
-    private String apiEndpoint;
-    private String airShipDomain;
-    private String accessToken;
-    private String appKey;
-    private String airshipHeader;
-    private String senderEmail;
-    private String senderName;
-    private String replyTo;
+    private AirshipSenderCache senderCache;
+    private AirshipBulkheads bulkheads;
+    private Function<AirshipAccount, AirshipHttpClient> httpClients;
+    private Function<String, AirshipOutbox> outboxes;
+    private Duration outboxReplayInterval;
+    private Supplier<AirshipRetryPolicy> retryPolicies;
+    private Function<String, AirshipRateLimiter> rateLimiters;
+    private Supplier<AirshipConcurrencyLimiter> concurrencyLimiters;
+    private Supplier<AirshipCircuitBreaker> circuitBreakers;
+    private Supplier<AirshipSendQueue> sendQueues;
+    private ConcurrentMap<String, String> rateLimitStore;
+    private int batchMaxSize;
+    private Duration batchWindow;
+    private boolean smtpFallback;
+    private AirshipDeduplicator deduplicator;
+    private AirshipMetrics metrics;
 
     private static final String DEFAULT_AIRSHIP_HEADER = "vnd.urbanairship+json";
     private static final String DEFAULT_AIRSHIP_DOMAIN = "https://go.airship.eu";
+    static final String DEFAULT_AIRSHIP_OAUTH_TOKEN_URL = "https://oauth2.asnapieu.com/token";
+    private static final int DEFAULT_HTTP_CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int DEFAULT_HTTP_REQUEST_TIMEOUT_MILLIS = 10000;
+    private static final int DEFAULT_HTTP_COMPRESSION_LEVEL = 6;
+    private static final int DEFAULT_HTTP_COMPRESSION_THRESHOLD_BYTES = 2048;
+    private static final int DEFAULT_OUTBOX_FSYNC_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_OUTBOX_COMPACTION_INTERVAL_SECONDS = 60;
+    private static final int DEFAULT_OUTBOX_REPLAY_INTERVAL_SECONDS = 60;
+    private static final int DEFAULT_RETRY_MAX_ATTEMPTS = 3;
+    private static final int DEFAULT_RETRY_BASE_DELAY_MILLIS = 200;
+    private static final int DEFAULT_RETRY_MAX_DELAY_MILLIS = 5000;
+    private static final int DEFAULT_RETRY_DEADLINE_MILLIS = 15000;
+    private static final int DEFAULT_RETRY_BUDGET_PERCENT = 20;
+    private static final int DEFAULT_RETRY_BUDGET_MIN_PER_SECOND = 10;
+    private static final int DEFAULT_RATE_LIMIT_LEASE_SIZE = 10;
+    private static final int DEFAULT_RATE_LIMIT_LEASE_MILLIS = 1000;
+    private static final int DEFAULT_RATE_LIMIT_MAX_WAIT_MILLIS = 5000;
+    private static final int DEFAULT_CONCURRENCY_INITIAL_LIMIT = 20;
+    private static final int DEFAULT_CONCURRENCY_MIN_LIMIT = 1;
+    private static final int DEFAULT_CONCURRENCY_MAX_LIMIT = 200;
+    private static final int DEFAULT_CONCURRENCY_MAX_WAIT_MILLIS = 5000;
+    private static final int DEFAULT_CIRCUIT_WINDOW_SIZE = 50;
+    private static final int DEFAULT_CIRCUIT_MIN_CALLS = 20;
+    private static final int DEFAULT_CIRCUIT_FAILURE_RATE_PERCENT = 50;
+    private static final int DEFAULT_CIRCUIT_SLOW_CALL_MILLIS = 5000;
+    private static final int DEFAULT_CIRCUIT_SLOW_CALL_RATE_PERCENT = 80;
+    private static final int DEFAULT_CIRCUIT_OPEN_SECONDS = 30;
+    private static final int DEFAULT_CIRCUIT_HALF_OPEN_CALLS = 5;
+    private static final int DEFAULT_BATCH_MAX_SIZE = 100;
+    private static final int DEFAULT_BATCH_WINDOW_MILLIS = 20;
+    private static final int DEFAULT_DEDUP_WINDOW_SECONDS = 60;
+    private static final int DEFAULT_DEDUP_MAX_ENTRIES = 10000;
+    private static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 1000;
+    private static final int DEFAULT_ASYNC_WORKERS = 16;
+    private static final int DEFAULT_ASYNC_DRAIN_TIMEOUT_SECONDS = 30;
 
     @Override
     public void init(Config.Scope config) {
         LOGGER.info("******** INITIALIZING AIRSHIP EMAIL SENDER PROVIDER ********");
 
-        // Load required environment variables
-        this.apiEndpoint = getEnvOrThrow("AIRSHIP_ENDPOINT");
-        this.accessToken = getEnvOrThrow("AIRSHIP_ACCESS_TOKEN");
-        this.appKey = getEnvOrThrow("AIRSHIP_APP_KEY");
-        this.airshipHeader = getEnvOrDefault("AIRSHIP_HEADER", DEFAULT_AIRSHIP_HEADER);
-        this.airShipDomain = getEnvOrDefault("AIRSHIP_DOMAIN", DEFAULT_AIRSHIP_DOMAIN);
+        // Load required environment variables, realms can override them with their own attributes
+        AirshipAccount.OAuth oauth = null;
+        String oauthClientId = getOptionalEnv("AIRSHIP_OAUTH_CLIENT_ID", null);
+        if (oauthClientId != null) {
+            oauth = new AirshipAccount.OAuth(
+                    oauthClientId,
+                    getEnvOrThrow("AIRSHIP_OAUTH_CLIENT_SECRET"),
+                    getOptionalEnv("AIRSHIP_OAUTH_TOKEN_URL", DEFAULT_AIRSHIP_OAUTH_TOKEN_URL),
+                    getOptionalEnv("AIRSHIP_OAUTH_SCOPE", null));
+        }
+        var account = new AirshipAccount(
+                getEnvOrDefault("AIRSHIP_DOMAIN", DEFAULT_AIRSHIP_DOMAIN),
+                getEnvOrThrow("AIRSHIP_ENDPOINT"),
+                getEnvOrDefault("AIRSHIP_HEADER", DEFAULT_AIRSHIP_HEADER),
+                oauth == null ? getEnvOrThrow("AIRSHIP_ACCESS_TOKEN") : getOptionalEnv("AIRSHIP_ACCESS_TOKEN", null),
+                getEnvOrThrow("AIRSHIP_APP_KEY"),
+                oauth);
 
         LOGGER.info("Airship Email Configuration:");
-        LOGGER.infof("API URL: %s", apiEndpoint);
-        LOGGER.infof("Domain: %s", airShipDomain);
-        LOGGER.info(accessToken != null ? "Access Token: [CONFIGURED]" : "Access Token: [MISSING]");
-        LOGGER.info(appKey != null ? "App Key: [CONFIGURED]" : "App Key: [MISSING]");
-        LOGGER.info(airshipHeader != null ? "Header: [CONFIGURED]" : "Header: [MISSING]");
+        LOGGER.infof("API URL: %s", account.endpoint());
+        LOGGER.infof("Domain: %s", account.domain());
+        LOGGER.info(account.accessToken() != null ? "Access Token: [CONFIGURED]" : "Access Token: [MISSING]");
+        LOGGER.info(account.oauth() != null ? "OAuth Client: " + account.oauth() : "OAuth Client: [NOT CONFIGURED]");
+        LOGGER.info(account.appKey() != null ? "App Key: [CONFIGURED]" : "App Key: [MISSING]");
+        LOGGER.info(account.header() != null ? "Header: [CONFIGURED]" : "Header: [MISSING]");
 
-        if (apiEndpoint.isEmpty() || accessToken.isEmpty() || appKey.isEmpty()) {
+        if (account.endpoint().isEmpty() || account.appKey().isEmpty()) {
             throw new IllegalStateException("Missing required Airship environment variables.");
         }
 
+        // Sender identity falls back to the realm email settings when not set
+        this.senderCache = new AirshipSenderCache(
+                getEnvOrDefault("AIRSHIP_EMAIL_SENDER", null),
+                getEnvOrDefault("AIRSHIP_EMAIL_SENDER_NAME", null),
+                getEnvOrDefault("AIRSHIP_EMAIL_REPLY_TO", null));
+
+        // Keycloak adds its registry to the global one when metrics are enabled
+        this.metrics = new AirshipMetrics(Metrics.globalRegistry);
+
+        // Each bulkhead gets its own instance of the components below, built from the same settings
+        var connectTimeout = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_HTTP_CONNECT_TIMEOUT_MILLIS", DEFAULT_HTTP_CONNECT_TIMEOUT_MILLIS));
+        var requestTimeout = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_HTTP_REQUEST_TIMEOUT_MILLIS", DEFAULT_HTTP_REQUEST_TIMEOUT_MILLIS));
+        AirshipCompressor compressor = null;
+        String compression = getOptionalEnv("AIRSHIP_HTTP_COMPRESSION", "none");
+        if (!"none".equalsIgnoreCase(compression)) {
+            int level = getIntEnvOrDefault("AIRSHIP_HTTP_COMPRESSION_LEVEL", DEFAULT_HTTP_COMPRESSION_LEVEL);
+            int threshold = getIntEnvOrDefault("AIRSHIP_HTTP_COMPRESSION_THRESHOLD_BYTES", DEFAULT_HTTP_COMPRESSION_THRESHOLD_BYTES);
+            compressor = new AirshipCompressor(AirshipCompressor.Encoding.valueOf(compression.toUpperCase(Locale.ROOT)), level, threshold);
+            LOGGER.infof("Request compression enabled: encoding=%s, level=%d, threshold=%d bytes", compression, level, threshold);
+        }
+        AirshipCompressor sharedCompressor = compressor;
+        String httpVersion = getOptionalEnv("AIRSHIP_HTTP_VERSION", null);
+        HttpClient.Version version = httpVersion == null ? null : HttpClient.Version.valueOf(httpVersion.toUpperCase(Locale.ROOT));
+        boolean virtualThreads = "virtual".equalsIgnoreCase(getOptionalEnv("AIRSHIP_HTTP_EXECUTOR", "default"));
+        this.httpClients = bulkheadAccount -> new AirshipHttpClient(bulkheadAccount, version, virtualThreads, connectTimeout, requestTimeout,
+                sharedCompressor, metrics);
+        LOGGER.infof("HTTP client: version=%s, virtualThreads=%s, connectTimeout=%s, requestTimeout=%s", version == null ? "auto" : version,
+                virtualThreads, connectTimeout, requestTimeout);
+
+        String outboxDirectory = getOptionalEnv("AIRSHIP_OUTBOX_DIR", null);
+        if (outboxDirectory != null) {
+            var fsyncInterval = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_OUTBOX_FSYNC_INTERVAL_MILLIS", DEFAULT_OUTBOX_FSYNC_INTERVAL_MILLIS));
+            var compactionInterval = Duration.ofSeconds(getIntEnvOrDefault("AIRSHIP_OUTBOX_COMPACTION_INTERVAL_SECONDS", DEFAULT_OUTBOX_COMPACTION_INTERVAL_SECONDS));
+            this.outboxReplayInterval = Duration.ofSeconds(getIntEnvOrDefault("AIRSHIP_OUTBOX_REPLAY_INTERVAL_SECONDS", DEFAULT_OUTBOX_REPLAY_INTERVAL_SECONDS));
+            this.outboxes = name -> {
+                // The default bulkhead keeps the outbox of the previous versions, the others get a subdirectory
+                Path directory = AirshipBulkheads.DEFAULT_BULKHEAD.equals(name)
+                        ? Path.of(outboxDirectory)
+                        : Path.of(outboxDirectory, "bulkheads", name.replaceAll("[^A-Za-z0-9._-]", "_"));
+                try {
+                    return new AirshipOutbox(directory, fsyncInterval, compactionInterval);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to open the Airship outbox in " + directory, e);
+                }
+            };
+            LOGGER.infof("Outbox enabled: directory=%s, fsyncInterval=%s, replayInterval=%s", outboxDirectory, fsyncInterval, outboxReplayInterval);
+        }
+
+        int retryMaxAttempts = getIntEnvOrDefault("AIRSHIP_RETRY_MAX_ATTEMPTS", DEFAULT_RETRY_MAX_ATTEMPTS);
+        var retryBaseDelay = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_RETRY_BASE_DELAY_MILLIS", DEFAULT_RETRY_BASE_DELAY_MILLIS));
+        var retryMaxDelay = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_RETRY_MAX_DELAY_MILLIS", DEFAULT_RETRY_MAX_DELAY_MILLIS));
+        var retryDeadline = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_RETRY_DEADLINE_MILLIS", DEFAULT_RETRY_DEADLINE_MILLIS));
+        boolean retryUnsafe = Boolean.parseBoolean(getOptionalEnv("AIRSHIP_RETRY_UNSAFE", "false"));
+        double retryBudgetRatio = getIntEnvOrDefault("AIRSHIP_RETRY_BUDGET_PERCENT", DEFAULT_RETRY_BUDGET_PERCENT) / 100.0;
+        int retryBudgetMinPerSecond = getIntEnvOrDefault("AIRSHIP_RETRY_BUDGET_MIN_PER_SECOND", DEFAULT_RETRY_BUDGET_MIN_PER_SECOND);
+        this.retryPolicies = () -> new AirshipRetryPolicy(retryMaxAttempts, retryBaseDelay, retryMaxDelay, retryDeadline,
+                retryUnsafe, retryBudgetRatio, retryBudgetMinPerSecond);
+        int ratePerSecond = getIntEnvOrDefault("AIRSHIP_RATE_LIMIT_PER_SECOND", 0);
+        if (ratePerSecond > 0) {
+            int burst = getIntEnvOrDefault("AIRSHIP_RATE_LIMIT_BURST", ratePerSecond);
+            int leaseSize = getIntEnvOrDefault("AIRSHIP_RATE_LIMIT_LEASE_SIZE", DEFAULT_RATE_LIMIT_LEASE_SIZE);
+            var lease = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_RATE_LIMIT_LEASE_MILLIS", DEFAULT_RATE_LIMIT_LEASE_MILLIS));
+            var maxWait = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_RATE_LIMIT_MAX_WAIT_MILLIS", DEFAULT_RATE_LIMIT_MAX_WAIT_MILLIS));
+            this.rateLimiters = appKey -> new AirshipRateLimiter(appKey, ratePerSecond, burst, leaseSize, lease, maxWait);
+            LOGGER.infof("Cluster rate limit enabled: rate=%d/s, burst=%d, leaseSize=%d", ratePerSecond, burst, leaseSize);
+        }
+        int concurrencyInitialLimit = getIntEnvOrDefault("AIRSHIP_CONCURRENCY_INITIAL_LIMIT", DEFAULT_CONCURRENCY_INITIAL_LIMIT);
+        int concurrencyMinLimit = getIntEnvOrDefault("AIRSHIP_CONCURRENCY_MIN_LIMIT", DEFAULT_CONCURRENCY_MIN_LIMIT);
+        int concurrencyMaxLimit = getIntEnvOrDefault("AIRSHIP_CONCURRENCY_MAX_LIMIT", DEFAULT_CONCURRENCY_MAX_LIMIT);
+        var concurrencyMaxWait = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_CONCURRENCY_MAX_WAIT_MILLIS", DEFAULT_CONCURRENCY_MAX_WAIT_MILLIS));
+        this.concurrencyLimiters = () -> new AirshipConcurrencyLimiter(concurrencyInitialLimit, concurrencyMinLimit, concurrencyMaxLimit, concurrencyMaxWait);
+        int circuitWindowSize = getIntEnvOrDefault("AIRSHIP_CIRCUIT_WINDOW_SIZE", DEFAULT_CIRCUIT_WINDOW_SIZE);
+        int circuitMinCalls = getIntEnvOrDefault("AIRSHIP_CIRCUIT_MIN_CALLS", DEFAULT_CIRCUIT_MIN_CALLS);
+        int circuitFailureRate = getIntEnvOrDefault("AIRSHIP_CIRCUIT_FAILURE_RATE_PERCENT", DEFAULT_CIRCUIT_FAILURE_RATE_PERCENT);
+        var circuitSlowCall = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_CIRCUIT_SLOW_CALL_MILLIS", DEFAULT_CIRCUIT_SLOW_CALL_MILLIS));
+        int circuitSlowCallRate = getIntEnvOrDefault("AIRSHIP_CIRCUIT_SLOW_CALL_RATE_PERCENT", DEFAULT_CIRCUIT_SLOW_CALL_RATE_PERCENT);
+        var circuitOpen = Duration.ofSeconds(getIntEnvOrDefault("AIRSHIP_CIRCUIT_OPEN_SECONDS", DEFAULT_CIRCUIT_OPEN_SECONDS));
+        int circuitHalfOpenCalls = getIntEnvOrDefault("AIRSHIP_CIRCUIT_HALF_OPEN_CALLS", DEFAULT_CIRCUIT_HALF_OPEN_CALLS);
+        this.circuitBreakers = () -> new AirshipCircuitBreaker(circuitWindowSize, circuitMinCalls, circuitFailureRate,
+                circuitSlowCall, circuitSlowCallRate, circuitOpen, circuitHalfOpenCalls);
+        this.smtpFallback = "smtp".equalsIgnoreCase(getOptionalEnv("AIRSHIP_CIRCUIT_FALLBACK", "none"));
+        this.batchMaxSize = 1;
+        this.batchWindow = Duration.ZERO;
+        if (Boolean.parseBoolean(getOptionalEnv("AIRSHIP_BATCH_ENABLED", "false"))) {
+            batchMaxSize = getIntEnvOrDefault("AIRSHIP_BATCH_MAX_SIZE", DEFAULT_BATCH_MAX_SIZE);
+            batchWindow = Duration.ofMillis(getIntEnvOrDefault("AIRSHIP_BATCH_WINDOW_MILLIS", DEFAULT_BATCH_WINDOW_MILLIS));
+            LOGGER.infof("Batching enabled: maxSize=%d, window=%s", batchMaxSize, batchWindow);
+        }
+
+        if (Boolean.parseBoolean(getOptionalEnv("AIRSHIP_DEDUP_ENABLED", "false"))) {
+            var window = Duration.ofSeconds(getIntEnvOrDefault("AIRSHIP_DEDUP_WINDOW_SECONDS", DEFAULT_DEDUP_WINDOW_SECONDS));
+            int maxEntries = getIntEnvOrDefault("AIRSHIP_DEDUP_MAX_ENTRIES", DEFAULT_DEDUP_MAX_ENTRIES);
+            var key = AirshipDeduplicator.Key.valueOf(getOptionalEnv("AIRSHIP_DEDUP_KEY", "content").toUpperCase(Locale.ROOT));
+            this.deduplicator = new AirshipDeduplicator(window, maxEntries, key);
+            metrics.gauge("dedup.size", "Emails remembered to suppress duplicates", deduplicator, AirshipDeduplicator::size);
+            LOGGER.infof("Duplicate suppression enabled: window=%s, maxEntries=%d, key=%s", window, maxEntries, key);
+        }
+
+        if (Boolean.parseBoolean(getOptionalEnv("AIRSHIP_ASYNC_ENABLED", "false"))) {
+            int capacity = getIntEnvOrDefault("AIRSHIP_ASYNC_QUEUE_CAPACITY", DEFAULT_ASYNC_QUEUE_CAPACITY);
+            int workers = getIntEnvOrDefault("AIRSHIP_ASYNC_WORKERS", DEFAULT_ASYNC_WORKERS);
+            var backpressure = AirshipSendQueue.Backpressure.valueOf(getOptionalEnv("AIRSHIP_ASYNC_BACKPRESSURE", "block").toUpperCase(Locale.ROOT));
+            var drainTimeout = Duration.ofSeconds(getIntEnvOrDefault("AIRSHIP_ASYNC_DRAIN_TIMEOUT_SECONDS", DEFAULT_ASYNC_DRAIN_TIMEOUT_SECONDS));
+            this.sendQueues = () -> new AirshipSendQueue(capacity, workers, backpressure, drainTimeout);
+            LOGGER.infof("Async sending enabled: capacity=%d, workers=%d, backpressure=%s", capacity, workers, backpressure);
+        }
+
+        this.bulkheads = new AirshipBulkheads(account, this::createBulkhead);
+
         LOGGER.info("******** AIRSHIP EMAIL SENDER PROVIDER INITIALIZING SUCCESSFULLY ********");
     }
 
     @Override
     public EmailSenderProvider create(KeycloakSession session) {
-        this.senderEmail = getEnvOrDefault("AIRSHIP_EMAIL_SENDER", getFromEmail(session));
-        this.senderName = getEnvOrDefault("AIRSHIP_EMAIL_SENDER_NAME", getFromDisplay(session));
-        this.replyTo = getEnvOrDefault("AIRSHIP_EMAIL_REPLY_TO", getReplyToDisplay(session) + " <" + getReplyTo(session) + ">");
-
-        LOGGER.info("Email Configuration:");
-        LOGGER.infof("Sender Email: %s", senderEmail);
-        LOGGER.infof("Sender Name: %s", senderName);
-        LOGGER.infof("Reply To: %s", replyTo);
-
-        return new AirshipEmailProvider(session, apiEndpoint, airShipDomain, accessToken, appKey, airshipHeader, senderEmail, senderName, replyTo);
+        RealmModel realm = session.getContext().getRealm();
+        var payloadWriter = senderCache.getPayloadWriter(realm);
+        AirshipBulkhead bulkhead = bulkheads.get(session, realm);
+        return new AirshipEmailProvider(session, bulkhead.getDispatcher(), payloadWriter, bulkhead.getSendQueue(), smtpFallback, deduplicator, metrics);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        keycloakSessionFactory.register(senderCache);
+        keycloakSessionFactory.register(bulkheads);
+        KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+            if (rateLimiters != null) {
+                // The buckets live in the replicated work cache, shared by all the nodes of the cluster
+                InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+                if (infinispan == null) {
+                    LOGGER.warn("Infinispan is not available, the Airship rate limit applies to this node only");
+                } else {
+                    rateLimitStore = infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+                }
+            }
+            // Opens the bulkheads of the existing realms, so that their outboxes are replayed
+            bulkheads.getDefault();
+            session.realms().getRealmsStream().forEach(realm -> {
+                try {
+                    bulkheads.get(session, realm);
+                } catch (IllegalStateException e) {
+                    LOGGER.errorf("Airship emails of realm %s cannot be sent: %s", realm.getName(), e.getMessage());
+                }
+            });
+        });
     }
 
     @Override
     public void close() {
         LOGGER.debug("******** CLOSING AIRSHIP EMAIL SENDER PROVIDER ********");
+        if (bulkheads != null) {
+            bulkheads.close();
+        }
+    }
+
+    private AirshipBulkhead createBulkhead(String name, AirshipAccount account) {
+        LOGGER.infof("Opening Airship bulkhead %s", name);
+        AirshipHttpClient httpClient = httpClients.apply(account);
+        AirshipOutbox outbox = outboxes == null ? null : outboxes.apply(name);
+        AirshipRateLimiter rateLimiter = null;
+        if (rateLimiters != null) {
+            rateLimiter = rateLimiters.apply(account.appKey());
+            if (rateLimitStore != null) {
+                rateLimiter.bind(rateLimitStore);
+            }
+            metrics.counter("rate_limit.rejected", "Airship calls rejected by the cluster rate limit", name, rateLimiter, AirshipRateLimiter::getRejected);
+        }
+        AirshipConcurrencyLimiter concurrencyLimiter = concurrencyLimiters.get();
+        AirshipCircuitBreaker circuitBreaker = circuitBreakers.get();
+        var dispatcher = new AirshipDispatcher(httpClient, outbox, retryPolicies.get(), rateLimiter, concurrencyLimiter, circuitBreaker, metrics, batchMaxSize, batchWindow);
+        AirshipSendQueue sendQueue = sendQueues == null ? null : sendQueues.get();
+
+        metrics.gauge("concurrency.limit", "Current limit of concurrent Airship calls", name, concurrencyLimiter, AirshipConcurrencyLimiter::getLimit);
+        metrics.gauge("concurrency.in_flight", "Airship calls in flight", name, concurrencyLimiter, AirshipConcurrencyLimiter::getInFlight);
+        metrics.counter("concurrency.rejected", "Airship calls rejected by the concurrency limit", name, concurrencyLimiter, AirshipConcurrencyLimiter::getRejected);
+        metrics.gauge("circuit.state", "Airship circuit state: 0 closed, 1 open, 2 half-open", name, circuitBreaker, breaker -> breaker.getState().ordinal());
+        if (outbox != null) {
+            metrics.gauge("outbox.pending", "Emails pending in the Airship outbox", name, outbox, AirshipOutbox::size);
+        }
+        if (sendQueue != null) {
+            metrics.gauge("queue.size", "Emails waiting in the Airship send queue", name, sendQueue, AirshipSendQueue::size);
+        }
+        return new AirshipBulkhead(name, account, httpClient, outbox, dispatcher, sendQueue, outboxReplayInterval);
     }
 
     @Override
@@ -82,22 +309,6 @@ public class AirshipEmailFactory implements EmailSenderProviderFactory {
         return 100;
     }
 
-    private String getFromEmail(KeycloakSession session) {
-        return session.getContext().getRealm().getSmtpConfig().get("from");
-    }
-
-    private String getFromDisplay(KeycloakSession session) {
-        return session.getContext().getRealm().getSmtpConfig().get("fromDisplayName");
-    }
-
-    private String getReplyTo(KeycloakSession session) {
-        return session.getContext().getRealm().getSmtpConfig().get("replyTo");
-    }
-
-    private String getReplyToDisplay(KeycloakSession session) {
-        return session.getContext().getRealm().getSmtpConfig().get("replyToDisplayName");
-    }
-
     private String getEnvOrDefault(String envVar, String defaultValue) {
         String value = System.getenv(envVar);
         if (value == null || value.isEmpty()) {
@@ -107,6 +318,22 @@ public class AirshipEmailFactory implements EmailSenderProviderFactory {
         return value;
     }
 
+    /**
+     * Reads a setting that is usually left unset, so its default value is not worth a warning.
+     */
+    private String getOptionalEnv(String envVar, String defaultValue) {
+        String value = System.getenv(envVar);
+        if (value == null || value.isEmpty()) {
+            LOGGER.debugf("Environment variable %s not set, using default value: %s", envVar, defaultValue);
+            return defaultValue;
+        }
+        return value;
+    }
+
+    private int getIntEnvOrDefault(String envVar, int defaultValue) {
+        return Integer.parseInt(getOptionalEnv(envVar, String.valueOf(defaultValue)));
+    }
+
     private String getEnvOrThrow(String envVar) {
         String value = System.getenv(envVar);
         if (value == null || value.isEmpty()) {
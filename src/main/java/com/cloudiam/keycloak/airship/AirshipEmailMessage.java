@@ -0,0 +1,21 @@
+package com.cloudiam.keycloak.airship;
+
+import java.util.Map;
+
+/**
+ * A single email to be delivered through Airship, detached from the Keycloak session that produced it.
+ * <p>
+ * The email either carries its rendered subject and bodies, or the id of an Airship-hosted template and the
+ * substitutions it is rendered with.
+ */
+public record AirshipEmailMessage(String address, String subject, String textBody, String htmlBody, String templateId,
+                                  Map<String, String> substitutions) {
+
+    public AirshipEmailMessage(String address, String subject, String textBody, String htmlBody) {
+        this(address, subject, textBody, htmlBody, null, Map.of());
+    }
+
+    public static AirshipEmailMessage ofTemplate(String address, String templateId, Map<String, String> substitutions) {
+        return new AirshipEmailMessage(address, null, null, null, templateId, substitutions);
+    }
+}
@@ -1,131 +1,147 @@
 package com.cloudiam.keycloak.airship;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.jboss.logging.Logger;
-import org.keycloak.broker.provider.util.SimpleHttp;
 import org.keycloak.email.EmailException;
 import org.keycloak.email.EmailSenderProvider;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 
 public class AirshipEmailProvider implements EmailSenderProvider {
 
     private static final Logger LOGGER = Logger.getLogger(AirshipEmailFactory.class);
-    private final String apiUrl;
-    private final String airShipDomain;
-    private final String accessToken;
-    private final String appKey;
-    private final String senderEmail;
-    private final String senderName;
-    private final String replyTo;
-    private final String airshipHeader;
-
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    // Keycloak built-in SMTP email sender
+    private static final String SMTP_PROVIDER_ID = "default";
+    private final AirshipDispatcher dispatcher;
+    private final AirshipPayloadWriter payloadWriter;
     private final KeycloakSession session;
+    private final AirshipSendQueue sendQueue;
+    private final boolean smtpFallback;
+    private final AirshipDeduplicator deduplicator;
+    private final AirshipMetrics metrics;
 
-    public AirshipEmailProvider(KeycloakSession session, String apiUrl, String airShipDomain, String accessToken, String appKey, String airshipHeader, String senderEmail, String senderName, String replyTo) {
-        this.apiUrl = apiUrl;
-        this.airShipDomain = airShipDomain;
-        this.accessToken = accessToken;
-        this.appKey = appKey;
-        this.airshipHeader = airshipHeader;
+    public AirshipEmailProvider(KeycloakSession session, AirshipDispatcher dispatcher, AirshipPayloadWriter payloadWriter, AirshipSendQueue sendQueue, boolean smtpFallback, AirshipDeduplicator deduplicator, AirshipMetrics metrics) {
+        this.dispatcher = dispatcher;
         this.session = session;
-        this.senderEmail = senderEmail;
-        this.senderName = senderName;
-        this.replyTo = replyTo;
+        this.payloadWriter = payloadWriter;
+        this.sendQueue = sendQueue;
+        this.smtpFallback = smtpFallback;
+        this.deduplicator = deduplicator;
+        this.metrics = metrics;
     }
 
     @Override
     public void send(Map<String, String> config, String address, String subject, String textBody, String htmlBody) throws EmailException {
-        try {
-            LOGGER.info("******** START AIRSHIP EMAIL SENDING ********");
-
-            // Create the payload according to Airship API format
-            ObjectNode payload = objectMapper.createObjectNode();
-            ObjectNode audience = objectMapper.createObjectNode();
-            ObjectNode recipient = objectMapper.createObjectNode();
-            ArrayNode createAndSend = objectMapper.createArrayNode();
-
-            recipient.put("ua_address", address);
-            createAndSend.add(recipient);
-            audience.set("create_and_send", createAndSend);
-            payload.set("audience", audience);
-
-            // Set device_types to email
-            ArrayNode deviceTypes = objectMapper.createArrayNode();
-            deviceTypes.add("email");
-            payload.set("device_types", deviceTypes);
-
-            // Create notification content
-            ObjectNode notification = objectMapper.createObjectNode();
-            ObjectNode email = objectMapper.createObjectNode();
-
-            // Create categories node
-            ArrayNode categories = objectMapper.createArrayNode();
-            categories.add("keycloak");
-
-            email.put("sender_name", senderName);
-            email.put("sender_address", senderEmail);
-            email.put("reply_to", replyTo);
-            email.put("subject", subject);
-            email.put("message_type", "transactional");
-            email.put("bypass_opt_in_level", true);
-            email.put("click_tracking", false);
-            email.put("open_tracking", false);
-
-            // Set email configuration
-            email.put("sender_name", senderName);
-            email.put("sender_address", senderEmail);
-            email.put("reply_to", replyTo);
-
-            // Set email content
-            if (htmlBody != null && !htmlBody.isEmpty()) {
-                email.put("html_body", htmlBody);
-            }
+        sendOnce(config, new AirshipEmailMessage(address, subject, textBody, htmlBody));
+    }
 
-            if (textBody != null && !textBody.isEmpty()) {
-                email.put("plaintext_body", textBody);
-            }
+    /**
+     * Whether an email can be sent from an Airship template right now, such emails cannot go through SMTP.
+     */
+    public boolean canSendTemplate() {
+        return !smtpFallback || !dispatcher.isCircuitOpen();
+    }
 
-            notification.set("email", email);
-            payload.set("notification", notification);
+    /**
+     * Sends an email rendered by Airship from a hosted template, with the given substitutions.
+     */
+    public void sendTemplate(String address, String templateId, Map<String, String> substitutions) throws EmailException {
+        sendOnce(null, AirshipEmailMessage.ofTemplate(address, templateId, substitutions));
+    }
 
-            // Create campaigns node and add categories
-            ObjectNode campaigns = objectMapper.createObjectNode();
-            campaigns.set("categories", categories);
-            payload.set("campaigns", campaigns);
+    private void sendOnce(Map<String, String> config, AirshipEmailMessage message) throws EmailException {
+        if (deduplicator == null) {
+            send(config, message, null);
+            return;
+        }
 
-            // Convert to JSON and send
-            String json = objectMapper.writeValueAsString(payload);
-            LOGGER.tracef("Request payload: %s", json);
+        long digest = deduplicator.digest(message);
+        if (!deduplicator.tryAcquire(digest)) {
+            metrics.recordDuplicate();
+            LOGGER.debugf("Identical email to %s already sent recently, skipped", message.address());
+            return;
+        }
+        try {
+            // Emails that fail after the request, in async mode, can be sent again too
+            send(config, message, () -> deduplicator.release(digest));
+        } catch (EmailException | RuntimeException e) {
+            deduplicator.release(digest);
+            throw e;
+        }
+    }
 
-            String fullUrl = airShipDomain + apiUrl;
-            LOGGER.debugf("Sending HTTP request to %s", fullUrl);
+    /**
+     * @param onDiscarded called when an email queued for delivery is discarded, or {@code null}
+     */
+    private void send(Map<String, String> config, AirshipEmailMessage message, Runnable onDiscarded) throws EmailException {
+        // Emails rendered by Airship have no body to send through SMTP
+        boolean canFallBack = smtpFallback && message.templateId() == null;
+        if (canFallBack && dispatcher.isCircuitOpen()) {
+            sendWithSmtp(session, smtpConfig(session, config), message);
+            return;
+        }
 
-            // Build request with proper headers
-            SimpleHttp simpleHttp = SimpleHttp.doPost(fullUrl, session)
-                    .header("Content-Type", "application/json")
-                    .header("Accept", "application/" + airshipHeader + "; version=3")
-                    .header("Authorization", "Bearer " + accessToken)
-                    .header("X-UA-App-Key", appKey)
-                    .json(payload);
+        AirshipPayload payload;
+        try {
+            long start = System.nanoTime();
+            payload = payloadWriter.write(message);
+            metrics.recordPayload(System.nanoTime() - start, payload.length());
+        } catch (IOException e) {
+            LOGGER.error("Failed to send email via Airship", e);
+            throw new EmailException("Failed to send email via Airship", e);
+        }
 
-            SimpleHttp.Response response = simpleHttp.asResponse();
+        if (sendQueue == null) {
+            // The circuit may also reject the email once half-open probes are taken, or while it is being retried
+            dispatcher.send(payloadWriter, message, payload, canFallBack ? rejected -> sendWithSmtp(session, smtpConfig(session, config), rejected) : null);
+            return;
+        }
 
+        AirshipSendQueue.Delivery delivery = dispatcher.deferred(payloadWriter, message, payload, canFallBack ? deferredSmtpFallback(config) : null);
+        sendQueue.submit(session, onDiscarded == null ? delivery : delivery.whenDiscarded(onDiscarded));
+        LOGGER.debugf("Airship email to %s queued for delivery after commit", message.address());
+    }
 
-            if (response.getStatus() >= 400) {
-                LOGGER.errorf("Failed to send email. Response code: %s, body: %s", response.getStatus(), response.asString());
-                throw new EmailException("Airship API responded with error: " + response.getStatus() + " - " + response.asString());
+    /**
+     * Falls back to SMTP after the request that sent the email is over, in a session of its own.
+     */
+    private AirshipDispatcher.Fallback deferredSmtpFallback(Map<String, String> config) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = session.getContext().getRealm().getId();
+        Map<String, String> requestConfig = config == null ? null : new HashMap<>(config);
+        return message -> {
+            EmailException[] failure = new EmailException[1];
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, smtpSession -> {
+                RealmModel realm = smtpSession.realms().getRealm(realmId);
+                smtpSession.getContext().setRealm(realm);
+                try {
+                    sendWithSmtp(smtpSession, smtpConfig(smtpSession, requestConfig), message);
+                } catch (EmailException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
             }
+        };
+    }
 
-            LOGGER.info("******** AIRSHIP EMAIL SENT SUCCESSFULLY to " + address);
-        } catch (Exception e) {
-            LOGGER.error("Failed to send email via Airship", e);
-            throw new EmailException("Failed to send email via Airship", e);
+    private static Map<String, String> smtpConfig(KeycloakSession session, Map<String, String> config) {
+        return config == null || config.isEmpty() ? session.getContext().getRealm().getSmtpConfig() : config;
+    }
+
+    private static void sendWithSmtp(KeycloakSession session, Map<String, String> smtpConfig, AirshipEmailMessage message) throws EmailException {
+        LOGGER.warnf("Airship circuit is open, sending email to %s through SMTP", message.address());
+        EmailSenderProvider smtpSender = session.getProvider(EmailSenderProvider.class, SMTP_PROVIDER_ID);
+        if (smtpSender == null) {
+            throw new EmailException("Airship circuit is open and the SMTP email sender is not available");
         }
+        smtpSender.send(smtpConfig, message.address(), message.subject(), message.textBody(), message.htmlBody());
     }
 
     @Override
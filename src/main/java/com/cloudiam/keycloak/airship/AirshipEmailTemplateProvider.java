@@ -0,0 +1,98 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.email.freemarker.FreeMarkerEmailTemplateProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Sends the Keycloak emails mapped to an Airship-hosted template as a template id and substitutions, instead of
+ * rendering them with FreeMarker. Emails without a mapped template are rendered and sent as usual.
+ */
+public class AirshipEmailTemplateProvider extends FreeMarkerEmailTemplateProvider {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipEmailTemplateProvider.class);
+    private static final String TEMPLATE_EXTENSION = ".ftl";
+
+    private final Map<String, String> templateIds;
+
+    public AirshipEmailTemplateProvider(KeycloakSession session, Map<String, String> templateIds) {
+        super(session);
+        this.templateIds = templateIds;
+    }
+
+    @Override
+    public void send(String subjectFormatKey, List<Object> subjectAttributes, String bodyTemplate, Map<String, Object> bodyAttributes) throws EmailException {
+        String templateId = templateIds.get(templateName(bodyTemplate));
+        if (templateId == null || user == null || user.getEmail() == null
+                || !(session.getProvider(EmailSenderProvider.class) instanceof AirshipEmailProvider airship)
+                || !airship.canSendTemplate()) {
+            sendRendered(subjectFormatKey, subjectAttributes, bodyTemplate, bodyAttributes);
+            return;
+        }
+
+        LOGGER.debugf("Sending %s to %s with Airship template %s", bodyTemplate, user.getEmail(), templateId);
+        airship.sendTemplate(user.getEmail(), templateId, substitutions(bodyAttributes));
+    }
+
+    /**
+     * Renders the email with FreeMarker and sends it through the email sender provider.
+     */
+    void sendRendered(String subjectFormatKey, List<Object> subjectAttributes, String bodyTemplate, Map<String, Object> bodyAttributes) throws EmailException {
+        super.send(subjectFormatKey, subjectAttributes, bodyTemplate, bodyAttributes);
+    }
+
+    /**
+     * The user and realm names, and every attribute of the email that has a plain value, such as the action link
+     * and its expiration. Attributes named like the fields Airship reserves for the recipient are left out.
+     */
+    private Map<String, String> substitutions(Map<String, Object> bodyAttributes) {
+        Map<String, String> substitutions = new LinkedHashMap<>();
+        putIfPresent(substitutions, "username", user.getUsername());
+        putIfPresent(substitutions, "firstName", user.getFirstName());
+        putIfPresent(substitutions, "lastName", user.getLastName());
+        putIfPresent(substitutions, "locale", session.getContext().resolveLocale(user).toLanguageTag());
+        if (realm != null) {
+            putIfPresent(substitutions, "realmName", realm.getDisplayName() != null ? realm.getDisplayName() : realm.getName());
+        }
+        if (bodyAttributes != null) {
+            for (Map.Entry<String, Object> attribute : bodyAttributes.entrySet()) {
+                if (AirshipPayloadWriter.isReserved(attribute.getKey())) {
+                    LOGGER.debugf("Email attribute %s is reserved by Airship, not passed as a substitution", attribute.getKey());
+                    continue;
+                }
+                putIfPresent(substitutions, attribute.getKey(), plainValue(attribute.getValue()));
+            }
+        }
+        return substitutions;
+    }
+
+    private static String plainValue(Object value) {
+        if (value instanceof CharSequence || value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        if (value instanceof Collection<?> values) {
+            return values.stream().map(String::valueOf).collect(Collectors.joining(","));
+        }
+        return null;
+    }
+
+    private static void putIfPresent(Map<String, String> substitutions, String key, String value) {
+        if (value != null) {
+            substitutions.put(key, value);
+        }
+    }
+
+    private static String templateName(String bodyTemplate) {
+        return bodyTemplate.endsWith(TEMPLATE_EXTENSION)
+                ? bodyTemplate.substring(0, bodyTemplate.length() - TEMPLATE_EXTENSION.length())
+                : bodyTemplate;
+    }
+}
@@ -0,0 +1,70 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.email.EmailTemplateProvider;
+import org.keycloak.email.EmailTemplateProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class AirshipEmailTemplateProviderFactory implements EmailTemplateProviderFactory {
+
+    public static final String PROVIDER_ID = "keycloak-airship-template-provider";
+    private static final Logger LOGGER = Logger.getLogger(AirshipEmailTemplateProviderFactory.class);
+    private Map<String, String> templateIds;
+
+    @Override
+    public void init(Config.Scope config) {
+        // Keycloak template names without extension, mapped to Airship template ids: email-verification=<id>,...
+        this.templateIds = parseTemplateIds(System.getenv("AIRSHIP_TEMPLATES"));
+        if (templateIds.isEmpty()) {
+            LOGGER.info("No Airship template configured, all emails are rendered by Keycloak");
+        } else {
+            LOGGER.infof("Airship templates: %s", templateIds);
+        }
+    }
+
+    @Override
+    public EmailTemplateProvider create(KeycloakSession session) {
+        return new AirshipEmailTemplateProvider(session, templateIds);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        // Do nothing
+    }
+
+    @Override
+    public void close() {
+        // Do nothing
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    // Make sure it overrides default email template provider
+    @Override
+    public int order() {
+        return 100;
+    }
+
+    static Map<String, String> parseTemplateIds(String value) {
+        Map<String, String> templateIds = new HashMap<>();
+        if (value == null || value.isBlank()) {
+            return templateIds;
+        }
+        for (String mapping : value.split(",")) {
+            String[] parts = mapping.split("=", 2);
+            if (parts.length != 2 || parts[0].isBlank() || parts[1].isBlank()) {
+                throw new IllegalStateException("Invalid Airship template mapping: " + mapping);
+            }
+            templateIds.put(parts[0].trim(), parts[1].trim());
+        }
+        return templateIds;
+    }
+}
@@ -0,0 +1,178 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP client for the Airship API, owned by an {@link AirshipBulkhead}.
+ * <p>
+ * Connections are pooled and kept alive by the JDK client, and multiplexed over HTTP/2 when the domain uses TLS. The HTTP
+ * version and the executor of the asynchronous tasks of the client can be set per client. The keep-alive and size of the
+ * pool cannot: they are JVM-wide settings of the JDK client, left to the server configuration.
+ * Requests are authenticated with the static access token of the account, or with a token of its OAuth client.
+ */
+public class AirshipHttpClient implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipHttpClient.class);
+
+    private final HttpClient httpClient;
+    private final ExecutorService executor;
+    private final Duration requestTimeout;
+    private final AirshipCompressor compressor;
+    private final AirshipMetrics metrics;
+    private volatile Target target;
+
+    /**
+     * @param tokens tokens of the OAuth client of the account, or {@code null} to use its static access token
+     */
+    private record Target(AirshipAccount account, URI domain, URI sendUri, String accept, AirshipTokenManager tokens) {
+    }
+
+    /**
+     * @param version        HTTP version of the client, or {@code null} for HTTP/2 when the domain uses TLS and HTTP/1.1
+     *                       otherwise
+     * @param virtualThreads run the asynchronous tasks of the client, such as reading responses, on virtual threads
+     *                       instead of the default pool of the JDK client
+     * @param compressor     compressor of the request bodies, or {@code null} to send them uncompressed
+     */
+    public AirshipHttpClient(AirshipAccount account, HttpClient.Version version, boolean virtualThreads, Duration connectTimeout,
+                             Duration requestTimeout, AirshipCompressor compressor, AirshipMetrics metrics) {
+        this.requestTimeout = requestTimeout;
+        this.compressor = compressor;
+        this.metrics = metrics;
+
+        if (version == null) {
+            // h2c upgrades are poorly supported, only negotiate HTTP/2 through TLS
+            version = "https".equalsIgnoreCase(URI.create(account.domain()).getScheme()) ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+        }
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NEVER);
+        this.executor = virtualThreads ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("airship-http-", 0).factory()) : null;
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        this.httpClient = builder.build();
+        this.target = target(account, null);
+    }
+
+    /**
+     * Posts a JSON payload to the Airship send endpoint, compressed when large enough. When Airship rejects an OAuth
+     * access token, the token is refreshed and the payload posted once more.
+     */
+    public HttpResponse<String> send(AirshipPayload payload) throws IOException, InterruptedException {
+        Target target = this.target;
+        String encoding = null;
+        AirshipPayload compressed = compressor == null ? null : compressor.compress(payload);
+        if (compressed != null) {
+            metrics.recordCompression(payload.length(), compressed.length());
+            encoding = compressor.getEncoding().header();
+            payload = compressed;
+        }
+
+        if (target.tokens() == null) {
+            return post(target, target.account().accessToken(), payload, encoding);
+        }
+        String token = target.tokens().getToken();
+        HttpResponse<String> response = post(target, token, payload, encoding);
+        if (response.statusCode() == 401) {
+            response = post(target, target.tokens().refresh(token), payload, encoding);
+        }
+        return response;
+    }
+
+    /**
+     * Resolves DNS and opens a TLS connection to the Airship domain in the background, so the first email does not
+     * pay for the handshake.
+     */
+    public void warmUp() {
+        Target target = this.target;
+        if (target.tokens() != null) {
+            target.tokens().prefetch();
+        }
+        HttpRequest request = HttpRequest.newBuilder(target.domain())
+                .timeout(requestTimeout)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        LOGGER.warnf("Airship connection warm-up failed: %s", error.getMessage());
+                    } else {
+                        LOGGER.debugf("Airship connection warmed up (%s, status %d)", response.version(), response.statusCode());
+                    }
+                });
+    }
+
+    /**
+     * Sends the next requests to the endpoint and with the credentials of the account. The HTTP version negotiated
+     * with the first domain is kept. A new OAuth client requests its first token in the background right away, and the
+     * tokens of the replaced client are no longer refreshed.
+     */
+    public synchronized void update(AirshipAccount account) {
+        Target previous = this.target;
+        Target updated = target(account, previous);
+        this.target = updated;
+        if (updated.tokens() != null && updated.tokens() != previous.tokens()) {
+            updated.tokens().prefetch();
+        }
+        if (previous.tokens() != null && previous.tokens() != updated.tokens()) {
+            previous.tokens().close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (target.tokens() != null) {
+            target.tokens().close();
+        }
+        httpClient.close();
+        if (executor != null) {
+            executor.close();
+        }
+    }
+
+    private HttpResponse<String> post(Target target, String accessToken, AirshipPayload payload, String encoding) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(target.sendUri())
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json")
+                .header("Accept", target.accept())
+                .header("Authorization", "Bearer " + accessToken)
+                .header("X-UA-App-Key", target.account().appKey());
+        if (encoding != null) {
+            builder.header("Content-Encoding", encoding);
+        }
+        HttpRequest request = builder
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payload.bytes(), 0, payload.length()))
+                .build();
+        long start = System.nanoTime();
+        return httpClient.send(request, responseInfo -> {
+            metrics.recordResponseHeaders(System.nanoTime() - start);
+            return HttpResponse.BodyHandlers.ofString().apply(responseInfo);
+        });
+    }
+
+    /**
+     * Keeps the tokens of the previous target while the OAuth client and app key are the same.
+     */
+    private Target target(AirshipAccount account, Target previous) {
+        AirshipTokenManager tokens = null;
+        if (account.oauth() != null) {
+            boolean sameClient = previous != null && previous.tokens() != null
+                    && account.oauth().equals(previous.account().oauth())
+                    && account.appKey().equals(previous.account().appKey());
+            tokens = sameClient ? previous.tokens() : new AirshipTokenManager(httpClient, account.appKey(), account.oauth(), requestTimeout, metrics);
+        }
+        return new Target(account, URI.create(account.domain()), URI.create(account.domain() + account.endpoint()),
+                "application/" + account.header() + "; version=3", tokens);
+    }
+}
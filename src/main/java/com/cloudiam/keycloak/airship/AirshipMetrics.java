@@ -0,0 +1,168 @@
+package com.cloudiam.keycloak.airship;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer instruments of the Airship sender, published on Keycloak's metrics endpoint when metrics are enabled.
+ */
+public class AirshipMetrics {
+
+    private static final String PREFIX = "airship.email.";
+
+    private final MeterRegistry registry;
+    private final Timer payloadTimer;
+    private final Timer responseHeadersTimer;
+    private final Timer sendSuccessTimer;
+    private final Timer sendFailureTimer;
+    private final DistributionSummary payloadSize;
+    private final DistributionSummary batchSize;
+    private final Counter duplicates;
+    private final Counter compressionSaved;
+    private final Counter tokenRefreshSuccesses;
+    private final Counter tokenRefreshFailures;
+    private final Counter[] responsesByStatusClass = new Counter[6];
+    private final Map<Class<?>, Counter> errorsByException = new ConcurrentHashMap<>();
+
+    public AirshipMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.payloadTimer = phaseTimer("payload");
+        this.responseHeadersTimer = phaseTimer("response_headers");
+        this.sendSuccessTimer = sendTimer("success");
+        this.sendFailureTimer = sendTimer("failure");
+        this.payloadSize = DistributionSummary.builder(PREFIX + "payload.size")
+                .description("Size of the Airship request bodies")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.batchSize = DistributionSummary.builder(PREFIX + "batch.size")
+                .description("Number of emails posted in a single Airship request when batching")
+                .register(registry);
+        this.duplicates = Counter.builder(PREFIX + "duplicates")
+                .description("Emails not sent because an identical one was sent recently")
+                .register(registry);
+        this.compressionSaved = Counter.builder(PREFIX + "compression.saved")
+                .description("Bytes saved by compressing Airship request bodies")
+                .baseUnit("bytes")
+                .register(registry);
+        this.tokenRefreshSuccesses = tokenRefreshCounter("success");
+        this.tokenRefreshFailures = tokenRefreshCounter("failure");
+        for (int statusClass = 1; statusClass < responsesByStatusClass.length; statusClass++) {
+            responsesByStatusClass[statusClass] = Counter.builder(PREFIX + "responses")
+                    .description("Airship responses by HTTP status class")
+                    .tag("status", statusClass + "xx")
+                    .register(registry);
+        }
+    }
+
+    /**
+     * Records the time to build and serialize a payload, and its size.
+     */
+    public void recordPayload(long nanos, int size) {
+        payloadTimer.record(nanos, TimeUnit.NANOSECONDS);
+        payloadSize.record(size);
+    }
+
+    /**
+     * Records the time from the start of an Airship call to its response headers, connection included.
+     */
+    public void recordResponseHeaders(long nanos) {
+        responseHeadersTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordResponse(int status) {
+        int statusClass = status / 100;
+        if (statusClass > 0 && statusClass < responsesByStatusClass.length) {
+            responsesByStatusClass[statusClass].increment();
+        }
+    }
+
+    public void recordError(Throwable error) {
+        errorsByException.computeIfAbsent(error.getClass(), exception -> Counter.builder(PREFIX + "errors")
+                        .description("Airship calls that failed without a response")
+                        .tag("exception", exception.getSimpleName())
+                        .register(registry))
+                .increment();
+    }
+
+    public void recordBatch(int emails) {
+        batchSize.record(emails);
+    }
+
+    public void recordCompression(int originalSize, int compressedSize) {
+        compressionSaved.increment(originalSize - compressedSize);
+    }
+
+    public void recordDuplicate() {
+        duplicates.increment();
+    }
+
+    public void recordTokenRefresh(boolean success) {
+        (success ? tokenRefreshSuccesses : tokenRefreshFailures).increment();
+    }
+
+    /**
+     * Records the total time of a send, retries included.
+     */
+    public void recordSend(long nanos, boolean success) {
+        (success ? sendSuccessTimer : sendFailureTimer).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public <T> void gauge(String name, String description, T source, ToDoubleFunction<T> value) {
+        Gauge.builder(PREFIX + name, source, value)
+                .description(description)
+                .register(registry);
+    }
+
+    /**
+     * Registers a gauge of one bulkhead, tagged with its name.
+     */
+    public <T> void gauge(String name, String description, String bulkhead, T source, ToDoubleFunction<T> value) {
+        Gauge.builder(PREFIX + name, source, value)
+                .description(description)
+                .tag("bulkhead", bulkhead)
+                .register(registry);
+    }
+
+    /**
+     * Registers a counter of one bulkhead, tagged with its name, whose count is kept by the source.
+     */
+    public <T> void counter(String name, String description, String bulkhead, T source, ToDoubleFunction<T> count) {
+        FunctionCounter.builder(PREFIX + name, source, count)
+                .description(description)
+                .tag("bulkhead", bulkhead)
+                .register(registry);
+    }
+
+    private Counter tokenRefreshCounter(String outcome) {
+        return Counter.builder(PREFIX + "token.refreshes")
+                .description("Airship OAuth access token requests")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private Timer phaseTimer(String phase) {
+        return Timer.builder(PREFIX + "phase")
+                .description("Duration of the phases of an Airship send")
+                .tag("phase", phase)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private Timer sendTimer(String outcome) {
+        return Timer.builder(PREFIX + "send")
+                .description("Total duration of Airship sends, retries included")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+}
@@ -0,0 +1,247 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, memory-mapped log of the emails handed to Airship.
+ * <p>
+ * A {@code PENDING} record holding the request body is appended before an email is dispatched, and an {@code ACK}
+ * record once it no longer needs to be sent. Records whose delivery failed are released, and replayed periodically until
+ * they are sent, as are the records left pending by a crash on the next start. Writes land in the page cache and are flushed to disk on a fixed interval rather than per email, and the log
+ * is periodically rewritten with only the pending records.
+ * <p>
+ * Record layout: type (1 byte), id (8 bytes), body length (4 bytes), body, CRC32C of all previous fields (4 bytes).
+ */
+public class AirshipOutbox implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipOutbox.class);
+
+    private static final String FILE_NAME = "airship-outbox.log";
+    private static final byte PENDING = 1;
+    private static final byte ACK = 2;
+    private static final int HEADER_SIZE = 1 + Long.BYTES + Integer.BYTES;
+    private static final int CRC_SIZE = Integer.BYTES;
+    private static final int MIN_MAPPED_SIZE = 8 * 1024 * 1024;
+
+    private final Path file;
+    private final Map<Long, AirshipPayload> pending = new LinkedHashMap<>();
+    // Pending records that are not being delivered, waiting for a replay
+    private final Set<Long> released = new LinkedHashSet<>();
+    private final ScheduledExecutorService scheduler;
+    private final List<Map.Entry<Long, AirshipPayload>> recovered;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long nextId;
+    private boolean dirty;
+    private int ackedSinceCompaction;
+
+    public AirshipOutbox(Path directory, Duration fsyncInterval, Duration compactionInterval) throws IOException {
+        Files.createDirectories(directory);
+        this.file = directory.resolve(FILE_NAME);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), MIN_MAPPED_SIZE));
+        recover();
+        this.recovered = List.copyOf(pending.entrySet());
+        released.addAll(pending.keySet());
+        compact();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> Thread.ofPlatform().daemon().name("airship-outbox").unstarted(r));
+        scheduler.scheduleWithFixedDelay(this::flush, fsyncInterval.toMillis(), fsyncInterval.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::compactIfNeeded, compactionInterval.toMillis(), compactionInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Emails that were still pending when the outbox was opened, by id.
+     */
+    public List<Map.Entry<Long, AirshipPayload>> recovered() {
+        return recovered;
+    }
+
+    public synchronized long append(AirshipPayload payload) {
+        long id = nextId++;
+        write(PENDING, id, payload);
+        pending.put(id, payload);
+        return id;
+    }
+
+    public synchronized void ack(long id) {
+        released.remove(id);
+        if (pending.remove(id) != null) {
+            write(ACK, id, null);
+            ackedSinceCompaction++;
+        }
+    }
+
+    /**
+     * Marks a pending email as no longer being delivered, so that the next replay sends it again.
+     */
+    public synchronized void release(long id) {
+        if (pending.containsKey(id)) {
+            released.add(id);
+        }
+    }
+
+    /**
+     * Takes the released emails, by id, which are pending until they are acknowledged or released again.
+     */
+    public synchronized List<Map.Entry<Long, AirshipPayload>> takeReleased() {
+        List<Map.Entry<Long, AirshipPayload>> entries = new ArrayList<>(released.size());
+        for (Long id : released) {
+            entries.add(Map.entry(id, pending.get(id)));
+        }
+        released.clear();
+        return entries;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    private void write(byte type, long id, AirshipPayload payload) {
+        int length = payload == null ? 0 : payload.length();
+        ensureCapacity(HEADER_SIZE + length + CRC_SIZE);
+
+        int start = buffer.position();
+        buffer.put(type).putLong(id).putInt(length);
+        if (payload != null) {
+            buffer.put(payload.bytes(), 0, length);
+        }
+        buffer.putInt(crc(buffer, start, HEADER_SIZE + length));
+        dirty = true;
+    }
+
+    private void ensureCapacity(int recordSize) {
+        if (buffer.remaining() >= recordSize) {
+            return;
+        }
+        try {
+            int position = buffer.position();
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(buffer.capacity() * 2L, position + (long) recordSize));
+            buffer.position(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to grow the Airship outbox", e);
+        }
+    }
+
+    /**
+     * Reads the log up to the first torn or corrupted record, which marks the end of what was written.
+     */
+    private void recover() {
+        while (buffer.remaining() >= HEADER_SIZE + CRC_SIZE) {
+            int start = buffer.position();
+            byte type = buffer.get();
+            long id = buffer.getLong();
+            int length = buffer.getInt();
+            if ((type != PENDING && type != ACK) || length < 0 || buffer.remaining() < length + CRC_SIZE) {
+                buffer.position(start);
+                break;
+            }
+            byte[] body = new byte[length];
+            buffer.get(body);
+            if (buffer.getInt() != crc(buffer, start, HEADER_SIZE + length)) {
+                LOGGER.warnf("Corrupted Airship outbox record at offset %d, ignoring the rest of the log", start);
+                buffer.position(start);
+                break;
+            }
+            if (type == PENDING) {
+                pending.put(id, new AirshipPayload(body, length));
+            } else {
+                pending.remove(id);
+            }
+            nextId = Math.max(nextId, id + 1);
+        }
+        if (!pending.isEmpty()) {
+            LOGGER.infof("Recovered %d pending emails from the Airship outbox", pending.size());
+        }
+    }
+
+    private synchronized void compactIfNeeded() {
+        if (ackedSinceCompaction > 0) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the pending records and atomically swaps it in.
+     */
+    private synchronized void compact() {
+        Path compacted = file.resolveSibling(FILE_NAME + ".compact");
+        try {
+            try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Map.Entry<Long, AirshipPayload> entry : pending.entrySet()) {
+                    AirshipPayload payload = entry.getValue();
+                    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length() + CRC_SIZE);
+                    record.put(PENDING).putLong(entry.getKey()).putInt(payload.length()).put(payload.bytes(), 0, payload.length());
+                    record.putInt(crc(record, 0, HEADER_SIZE + payload.length()));
+                    target.write(record.flip());
+                }
+                target.force(true);
+            }
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            channel.close();
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long used = channel.size();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(used * 2, MIN_MAPPED_SIZE));
+            buffer.position((int) used);
+            dirty = false;
+            ackedSinceCompaction = 0;
+        } catch (IOException e) {
+            LOGGER.error("Failed to compact the Airship outbox", e);
+        }
+    }
+
+    private void flush() {
+        MappedByteBuffer toFlush;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            toFlush = buffer;
+            dirty = false;
+        }
+        // Appends are not blocked while the pages are written to disk
+        toFlush.force();
+    }
+
+    private static int crc(ByteBuffer source, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(source.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        synchronized (this) {
+            flush();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close the Airship outbox", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.cloudiam.keycloak.airship;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serialized Airship request body. Only the first {@code length} bytes of {@code bytes} are part of the payload.
+ */
+public record AirshipPayload(byte[] bytes, int length) {
+
+    public String asString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
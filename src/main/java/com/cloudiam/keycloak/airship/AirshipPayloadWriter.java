@@ -0,0 +1,165 @@
+package com.cloudiam.keycloak.airship;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonFactoryBuilder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.JsonRecyclerPools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams Airship "create and send" payloads straight to bytes, without building a JSON tree.
+ * <p>
+ * The constant parts of the document, sender block included, are serialized once per sender and copied as raw bytes,
+ * only the recipients, subject and bodies are encoded for each message. Emails rendered by an Airship template carry
+ * the template id and per-recipient substitutions instead of a subject and bodies. Payloads are written to pooled
+ * buffers, so a payload costs a single allocation of its exact size.
+ */
+public class AirshipPayloadWriter {
+
+    // Virtual threads make the default thread-local buffer recycling useless, share a pool instead
+    private static final JsonFactory JSON_FACTORY = new JsonFactoryBuilder()
+            .recyclerPool(JsonRecyclerPools.newConcurrentDequePool())
+            .rootValueSeparator((String) null)
+            .build();
+
+    // Airship reads the recipient fields starting with this prefix, such as ua_address, as the recipient itself
+    private static final String RESERVED_PREFIX = "ua_";
+    private static final SerializedString UA_ADDRESS = new SerializedString("ua_address");
+    // Raw JSON around the values written for each message, which the generator writes as root values
+    private static final SerializedString AUDIENCE_START = new SerializedString("{\"audience\":{\"create_and_send\":[");
+    private static final SerializedString SUBJECT_FIELD = new SerializedString(",\"subject\":");
+    private static final SerializedString HTML_BODY_FIELD = new SerializedString(",\"html_body\":");
+    private static final SerializedString PLAINTEXT_BODY_FIELD = new SerializedString(",\"plaintext_body\":");
+    private static final SerializedString TEMPLATE_ID_FIELD = new SerializedString(",\"template\":{\"template_id\":");
+    private static final SerializedString TEMPLATE_END = new SerializedString("}");
+    private static final SerializedString DOCUMENT_END = new SerializedString("}}}");
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // Larger buffers are left to the garbage collector, so that a few huge emails do not pin memory
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+    private static final BlockingQueue<PayloadBuffer> BUFFERS = new ArrayBlockingQueue<>(64);
+
+    private final SerializedString envelope;
+
+    public AirshipPayloadWriter(AirshipSender sender) {
+        this.envelope = new SerializedString("]},\"device_types\":[\"email\"],\"campaigns\":{\"categories\":[\"keycloak\"]},"
+                + "\"notification\":{\"email\":{"
+                + "\"sender_name\":" + quoted(sender.name())
+                + ",\"sender_address\":" + quoted(sender.email())
+                + ",\"reply_to\":" + quoted(sender.replyTo())
+                + ",\"message_type\":\"transactional\",\"bypass_opt_in_level\":true,\"click_tracking\":false,\"open_tracking\":false");
+    }
+
+    public AirshipPayload write(AirshipEmailMessage message) throws IOException {
+        return write(List.of(message));
+    }
+
+    /**
+     * Writes a single payload sending the content of the first message to the address of each message, with the
+     * template substitutions of each message. Substitutions named like a field reserved by Airship are left out, so
+     * that they cannot redirect the email.
+     */
+    public AirshipPayload write(List<AirshipEmailMessage> recipients) throws IOException {
+        AirshipEmailMessage message = recipients.get(0);
+        PayloadBuffer buffer = takeBuffer();
+        try {
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer)) {
+                generator.writeRaw(AUDIENCE_START);
+                for (int i = 0; i < recipients.size(); i++) {
+                    AirshipEmailMessage recipient = recipients.get(i);
+                    if (i > 0) {
+                        generator.writeRaw(',');
+                    }
+                    generator.writeStartObject();
+                    generator.writeFieldName(UA_ADDRESS);
+                    generator.writeString(recipient.address());
+                    for (Map.Entry<String, String> substitution : recipient.substitutions().entrySet()) {
+                        if (!isReserved(substitution.getKey())) {
+                            generator.writeStringField(substitution.getKey(), substitution.getValue());
+                        }
+                    }
+                    generator.writeEndObject();
+                }
+
+                generator.writeRaw(envelope);
+                if (message.templateId() == null) {
+                    writeField(generator, SUBJECT_FIELD, message.subject());
+                }
+                if (message.htmlBody() != null && !message.htmlBody().isEmpty()) {
+                    writeField(generator, HTML_BODY_FIELD, message.htmlBody());
+                }
+                if (message.textBody() != null && !message.textBody().isEmpty()) {
+                    writeField(generator, PLAINTEXT_BODY_FIELD, message.textBody());
+                }
+                if (message.templateId() != null) {
+                    writeField(generator, TEMPLATE_ID_FIELD, message.templateId());
+                    generator.writeRaw(TEMPLATE_END);
+                }
+                generator.writeRaw(DOCUMENT_END);
+            }
+            return buffer.toPayload();
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Whether Airship reserves the recipient field of the given name, which cannot be used as a substitution.
+     */
+    static boolean isReserved(String substitution) {
+        return substitution.regionMatches(true, 0, RESERVED_PREFIX, 0, RESERVED_PREFIX.length());
+    }
+
+    private static void writeField(JsonGenerator generator, SerializableString name, String value) throws IOException {
+        generator.writeRaw(name);
+        if (value == null) {
+            generator.writeNull();
+        } else {
+            generator.writeString(value);
+        }
+    }
+
+    private static String quoted(String value) {
+        return value == null ? "null" : '"' + new String(JsonStringEncoder.getInstance().quoteAsString(value)) + '"';
+    }
+
+    private static PayloadBuffer takeBuffer() {
+        PayloadBuffer buffer = BUFFERS.poll();
+        return buffer == null ? new PayloadBuffer() : buffer;
+    }
+
+    private static void releaseBuffer(PayloadBuffer buffer) {
+        if (buffer.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+            buffer.reset();
+            BUFFERS.offer(buffer);
+        }
+    }
+
+    /**
+     * Copies the bytes written out to a payload of their exact size, so that the buffer can be reused.
+     */
+    private static final class PayloadBuffer extends ByteArrayOutputStream {
+
+        PayloadBuffer() {
+            super(BUFFER_SIZE);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        AirshipPayload toPayload() {
+            return new AirshipPayload(Arrays.copyOf(buf, count), count);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket shared by all the Keycloak nodes, limiting the rate of Airship calls of the whole cluster.
+ * <p>
+ * The bucket is a single entry of a cache replicated across the cluster, updated with compare-and-swap so that only
+ * plain strings are exchanged between nodes. To avoid a cluster round-trip per call, each node leases a few tokens at
+ * once and spends them locally. Leased tokens expire shortly, and the ones left unspent are put back in the bucket
+ * when the node leases again or closes, so a node holds at most one lease of the cluster quota.
+ * <p>
+ * Airship limits each project separately, so there is one bucket per app key.
+ */
+public class AirshipRateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipRateLimiter.class);
+
+    static final String BUCKET_KEY = "airship-email-rate-limit";
+    private static final long MILLITOKENS_PER_TOKEN = 1000;
+    private static final int MAX_SWAP_ATTEMPTS = 10;
+    private static final long CONTENTION_BACKOFF_MILLIS = 1;
+
+    private final String bucketKey;
+    private final long ratePerSecond;
+    private final long capacity;
+    private final int leaseSize;
+    private final long leaseNanos;
+    private final long maxWaitNanos;
+    private final ReentrantLock leaseLock = new ReentrantLock();
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile long leaseExpiresAt;
+    // Unspent tokens of expired leases not put back in the bucket yet, guarded by the lease lock
+    private int unspent;
+    private volatile ConcurrentMap<String, String> store = new ConcurrentHashMap<>();
+
+    /**
+     * @param appKey    Airship project whose calls are limited
+     * @param burst     tokens accumulated by the bucket while calls are below the rate
+     * @param leaseSize tokens taken from the bucket at once by a node
+     * @param lease     how long leased tokens can be spent
+     */
+    public AirshipRateLimiter(String appKey, int ratePerSecond, int burst, int leaseSize, Duration lease, Duration maxWait) {
+        this.bucketKey = BUCKET_KEY + ":" + appKey;
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = Math.max(burst, 1) * MILLITOKENS_PER_TOKEN;
+        this.leaseSize = Math.max(leaseSize, 1);
+        this.leaseNanos = lease.toNanos();
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    /**
+     * Shares the bucket through the given cluster-wide store instead of keeping it on this node.
+     */
+    public void bind(ConcurrentMap<String, String> store) {
+        this.store = store;
+    }
+
+    /**
+     * Takes a token, waiting up to the maximum wait for one to be available.
+     */
+    public void acquire() throws EmailException {
+        acquire(1);
+    }
+
+    /**
+     * Takes the given number of tokens, one per email posted, waiting up to the maximum wait for them to be available.
+     */
+    public void acquire(int tokens) throws EmailException {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        int taken = 0;
+        while (taken < tokens) {
+            if (tryTakeLeased()) {
+                taken++;
+                continue;
+            }
+            long waitMillis = lease();
+            if (waitMillis == 0) {
+                continue;
+            }
+            if (System.nanoTime() + waitMillis * 1_000_000 - deadline > 0) {
+                // The tokens already taken are left for the next calls of this node
+                leased.addAndGet(taken);
+                rejected.incrementAndGet();
+                throw new AirshipRejectedException("Airship rate limit reached, email not sent");
+            }
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                leased.addAndGet(taken);
+                Thread.currentThread().interrupt();
+                throw new AirshipRejectedException("Interrupted while waiting for the Airship rate limit", e);
+            }
+        }
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Puts the unspent leased tokens back in the shared bucket, for the other nodes to spend them.
+     */
+    public void close() {
+        leaseLock.lock();
+        try {
+            leaseExpiresAt = System.nanoTime() - 1;
+            unspent += leased.getAndSet(0);
+            ConcurrentMap<String, String> bucketStore = store;
+            for (int attempt = 0; attempt < MAX_SWAP_ATTEMPTS && unspent > 0; attempt++) {
+                long now = System.currentTimeMillis();
+                String current = bucketStore.get(bucketKey);
+                long updatedAt = updatedAt(current, now);
+                if (swap(bucketStore, current, available(current, updatedAt) + ":" + updatedAt)) {
+                    LOGGER.tracef("Returned %d Airship rate limit tokens", unspent);
+                    unspent = 0;
+                }
+            }
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    private boolean tryTakeLeased() {
+        if (System.nanoTime() - leaseExpiresAt > 0) {
+            return false;
+        }
+        int available;
+        do {
+            available = leased.get();
+            if (available == 0) {
+                return false;
+            }
+        } while (!leased.compareAndSet(available, available - 1));
+        return true;
+    }
+
+    /**
+     * Leases tokens from the shared bucket.
+     *
+     * @return 0 when tokens were leased, otherwise how long to wait before trying again, in milliseconds
+     */
+    private long lease() {
+        leaseLock.lock();
+        try {
+            // Another thread may have leased while this one was waiting for the lock
+            if (System.nanoTime() - leaseExpiresAt <= 0 && leased.get() > 0) {
+                return 0;
+            }
+            // The lease expired, its unspent tokens are put back in the bucket along with the refill
+            unspent += leased.getAndSet(0);
+            ConcurrentMap<String, String> bucketStore = store;
+            for (int attempt = 0; attempt < MAX_SWAP_ATTEMPTS; attempt++) {
+                long now = System.currentTimeMillis();
+                String current = bucketStore.get(bucketKey);
+                long updatedAt = updatedAt(current, now);
+                long tokens = available(current, updatedAt);
+                long granted = Math.min(leaseSize, tokens / MILLITOKENS_PER_TOKEN);
+                if (!swap(bucketStore, current, (tokens - granted * MILLITOKENS_PER_TOKEN) + ":" + updatedAt)) {
+                    continue;
+                }
+                unspent = 0;
+                if (granted == 0) {
+                    return Math.max(1, (MILLITOKENS_PER_TOKEN - tokens + ratePerSecond - 1) / ratePerSecond);
+                }
+                leased.set((int) granted);
+                leaseExpiresAt = System.nanoTime() + leaseNanos;
+                LOGGER.tracef("Leased %d Airship rate limit tokens", granted);
+                return 0;
+            }
+            return CONTENTION_BACKOFF_MILLIS;
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    private static long updatedAt(String current, long now) {
+        if (current == null) {
+            return now;
+        }
+        // Node clocks may drift apart, never refill for a negative duration
+        return Math.max(now, Long.parseLong(current, current.indexOf(':') + 1, current.length(), 10));
+    }
+
+    /**
+     * @return the millitokens of the bucket at the given time, including the unspent tokens being put back
+     */
+    private long available(String current, long updatedAt) {
+        long tokens = capacity;
+        if (current != null) {
+            int separator = current.indexOf(':');
+            long storedTokens = Long.parseLong(current, 0, separator, 10);
+            long storedAt = Long.parseLong(current, separator + 1, current.length(), 10);
+            tokens = storedTokens + (updatedAt - storedAt) * ratePerSecond;
+        }
+        return Math.min(capacity, tokens + unspent * MILLITOKENS_PER_TOKEN);
+    }
+
+    private boolean swap(ConcurrentMap<String, String> bucketStore, String current, String next) {
+        return current == null
+                ? bucketStore.putIfAbsent(bucketKey, next) == null
+                : bucketStore.replace(bucketKey, current, next);
+    }
+}
@@ -0,0 +1,17 @@
+package com.cloudiam.keycloak.airship;
+
+import org.keycloak.email.EmailException;
+
+/**
+ * Airship call rejected before it was made, by the circuit breaker or a limiter, the email was not handed to Airship.
+ */
+public class AirshipRejectedException extends EmailException {
+
+    public AirshipRejectedException(String message) {
+        super(message);
+    }
+
+    public AirshipRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
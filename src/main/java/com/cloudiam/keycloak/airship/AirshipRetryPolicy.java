@@ -0,0 +1,145 @@
+package com.cloudiam.keycloak.airship;
+
+import org.keycloak.email.EmailException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a failed Airship call is sent again.
+ * <p>
+ * Delays grow exponentially with full jitter, up to a cap, unless Airship asks for a specific delay with
+ * {@code Retry-After}. A send is never retried past its deadline, and retries across all sends are limited by a
+ * budget proportional to the number of sends, so that retries cannot multiply the load on Airship during an outage.
+ * <p>
+ * Airship does not support idempotency keys on its send endpoints, so by default only failures where Airship
+ * certainly did not process the email are retried: connection failures, {@code 429} and {@code 503}.
+ */
+public class AirshipRetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long deadlineNanos;
+    private final boolean retryUnsafe;
+    private final double budgetRatio;
+    private final int budgetMinPerSecond;
+
+    private double budgetTokens;
+    private long budgetSecond;
+    private int budgetReserveUsed;
+
+    /**
+     * @param maxAttempts        maximum number of calls per send, including the first one
+     * @param retryUnsafe        also retry failures where Airship may have processed the email
+     * @param budgetRatio        number of retries allowed per send, across all sends
+     * @param budgetMinPerSecond number of retries allowed every second regardless of the ratio
+     */
+    public AirshipRetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, Duration deadline, boolean retryUnsafe,
+                              double budgetRatio, int budgetMinPerSecond) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelay.toMillis();
+        this.maxDelayMillis = maxDelay.toMillis();
+        this.deadlineNanos = deadline.toNanos();
+        this.retryUnsafe = retryUnsafe;
+        this.budgetRatio = budgetRatio;
+        this.budgetMinPerSecond = budgetMinPerSecond;
+    }
+
+    /**
+     * Records a new send, which adds to the retry budget.
+     */
+    public synchronized void onSend() {
+        budgetTokens = Math.min(budgetTokens + budgetRatio, Math.max(budgetRatio * 1000, 1));
+    }
+
+    /**
+     * Returns the delay to wait before the next attempt, or {@code null} if the send must fail now.
+     *
+     * @param attempt    number of attempts already made
+     * @param failure    failure of the last attempt
+     * @param startNanos {@link System#nanoTime()} when the send started
+     */
+    public Duration nextDelay(int attempt, EmailException failure, long startNanos) {
+        if (attempt >= maxAttempts || !isRetryable(failure)) {
+            return null;
+        }
+
+        long cap = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        long delayMillis = ThreadLocalRandom.current().nextLong(cap + 1);
+        if (failure instanceof AirshipApiException apiException && apiException.getRetryAfter() != null) {
+            delayMillis = apiException.getRetryAfter().toMillis();
+        }
+
+        if (System.nanoTime() - startNanos + Duration.ofMillis(delayMillis).toNanos() > deadlineNanos || !withdrawBudget()) {
+            return null;
+        }
+        return Duration.ofMillis(delayMillis);
+    }
+
+    /**
+     * Tells whether an email that failed can be sent again later from the outbox, under the same rules as a retry.
+     * Calls rejected before they were made are always safe to send again.
+     */
+    public boolean isReplayable(EmailException failure) {
+        return failure instanceof AirshipRejectedException || isRetryable(failure);
+    }
+
+    boolean isRetryable(EmailException failure) {
+        if (failure instanceof AirshipApiException apiException) {
+            int status = apiException.getStatus();
+            return status == 429 || status == 503 || (retryUnsafe && apiException.isTransient());
+        }
+        Throwable cause = failure.getCause();
+        if (cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException) {
+            return true;
+        }
+        return retryUnsafe && cause instanceof IOException;
+    }
+
+    private synchronized boolean withdrawBudget() {
+        long second = System.nanoTime() / 1_000_000_000L;
+        if (second != budgetSecond) {
+            budgetSecond = second;
+            budgetReserveUsed = 0;
+        }
+        if (budgetReserveUsed < budgetMinPerSecond) {
+            budgetReserveUsed++;
+            return true;
+        }
+        if (budgetTokens >= 1) {
+            budgetTokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses a {@code Retry-After} header, either a number of seconds or an HTTP date.
+     *
+     * @return the delay, or {@code null} if the header is missing or invalid
+     */
+    public static Duration parseRetryAfter(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            try {
+                Instant date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                Duration delay = Duration.between(Instant.now(), date);
+                return delay.isNegative() ? Duration.ZERO : delay;
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of pending Airship deliveries, drained by a pool of virtual threads.
+ * <p>
+ * Deliveries are only enqueued once the Keycloak transaction that requested them commits, so a rolled back
+ * request never sends an email, and the request thread never waits on Airship. With the {@link Backpressure#REJECT}
+ * policy, room in the queue is reserved before the commit, so that a full queue fails the request instead of dropping
+ * an email it already committed.
+ */
+public class AirshipSendQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipSendQueue.class);
+    private static final long POLL_INTERVAL_MILLIS = 200;
+
+    public enum Backpressure {
+        /** Block the committing thread until there is room in the queue. */
+        BLOCK,
+        /** Fail fast when the queue is full. */
+        REJECT,
+        /** Deliver on the committing thread when the queue is full. */
+        SYNC
+    }
+
+    @FunctionalInterface
+    public interface Delivery {
+
+        /**
+         * Called once the delivery has been handed to the queue, before it can be delivered.
+         */
+        default void accepted() {
+        }
+
+        void deliver() throws EmailException;
+
+        /**
+         * Called when the delivery will not happen: its transaction rolled back, or it failed.
+         */
+        default void discarded() {
+        }
+
+        /**
+         * Returns this delivery, running the given action once it is discarded.
+         */
+        default Delivery whenDiscarded(Runnable action) {
+            Delivery delivery = this;
+            return new Delivery() {
+                @Override
+                public void accepted() {
+                    delivery.accepted();
+                }
+
+                @Override
+                public void deliver() throws EmailException {
+                    delivery.deliver();
+                }
+
+                @Override
+                public void discarded() {
+                    try {
+                        delivery.discarded();
+                    } finally {
+                        action.run();
+                    }
+                }
+            };
+        }
+    }
+
+    private final BlockingQueue<Delivery> queue = new LinkedBlockingQueue<>();
+    // Room left in the queue, taken when a delivery is enqueued or reserved, given back when a worker takes it
+    private final Semaphore slots;
+    private final Backpressure backpressure;
+    private final Duration drainTimeout;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean closed;
+
+    public AirshipSendQueue(int capacity, int workerCount, Backpressure backpressure, Duration drainTimeout) {
+        this.slots = new Semaphore(capacity);
+        this.backpressure = backpressure;
+        this.drainTimeout = drainTimeout;
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(Thread.ofVirtual().name("airship-sender-" + i).start(this::drain));
+        }
+    }
+
+    /**
+     * Schedules the delivery to be enqueued after the session transaction commits.
+     *
+     * @throws EmailException when the queue is closed, or full with the {@link Backpressure#REJECT} policy
+     */
+    public void submit(KeycloakSession session, Delivery delivery) throws EmailException {
+        if (closed) {
+            throw new EmailException("Airship send queue is closed");
+        }
+        boolean reserved = backpressure == Backpressure.REJECT;
+        if (reserved && !slots.tryAcquire()) {
+            throw new EmailException("Airship send queue is full");
+        }
+
+        KeycloakTransactionManager transactionManager = session.getTransactionManager();
+        if (!transactionManager.isActive()) {
+            enqueue(delivery, reserved);
+            return;
+        }
+
+        transactionManager.enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                enqueue(delivery, reserved);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                if (reserved) {
+                    slots.release();
+                }
+                delivery.discarded();
+                LOGGER.debug("Transaction rolled back, Airship email discarded");
+            }
+        });
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * @param reserved whether room in the queue was already taken for the delivery
+     */
+    private void enqueue(Delivery delivery, boolean reserved) {
+        if (closed) {
+            // Committed while the queue was closing, its workers may be gone already
+            if (reserved) {
+                slots.release();
+            }
+            LOGGER.warn("Airship send queue is closed, sending synchronously");
+            delivery.accepted();
+            deliver(delivery);
+            return;
+        }
+        if (!reserved && !slots.tryAcquire()) {
+            if (backpressure == Backpressure.SYNC) {
+                LOGGER.warn("Airship send queue is full, sending synchronously");
+                delivery.accepted();
+                deliver(delivery);
+                return;
+            }
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.error("Interrupted while waiting for room in the Airship send queue, email dropped");
+                delivery.discarded();
+                return;
+            }
+        }
+        // Only accepted once there is room, so an accepted delivery is never dropped
+        delivery.accepted();
+        queue.add(delivery);
+        // The queue closed meanwhile, the workers may have stopped before taking it
+        if (closed && queue.remove(delivery)) {
+            slots.release();
+            deliver(delivery);
+        }
+    }
+
+    private void drain() {
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Delivery delivery = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (delivery != null) {
+                    slots.release();
+                    deliver(delivery);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void deliver(Delivery delivery) {
+        try {
+            delivery.deliver();
+        } catch (EmailException e) {
+            LOGGER.error("Asynchronous Airship delivery failed", e);
+            delivery.discarded();
+        } catch (RuntimeException e) {
+            LOGGER.error("Unexpected error during asynchronous Airship delivery", e);
+            delivery.discarded();
+        }
+    }
+
+    /**
+     * Stops accepting new deliveries and waits up to the drain timeout for queued ones to be sent.
+     */
+    public void close() {
+        closed = true;
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+        for (Thread worker : workers) {
+            try {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !worker.join(Duration.ofNanos(remaining))) {
+                    worker.interrupt();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!queue.isEmpty()) {
+            LOGGER.warnf("Airship send queue closed with %d undelivered emails", queue.size());
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.cloudiam.keycloak.airship;
+
+/**
+ * Sender identity of the emails sent through Airship.
+ */
+public record AirshipSender(String email, String name, String replyTo) {
+}
@@ -0,0 +1,91 @@
+package com.cloudiam.keycloak.airship;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sender identity and payload writer of each realm, resolved once from the environment and the realm email settings.
+ * <p>
+ * Entries are evicted when the realm is updated or removed, so sends do not read the realm email settings. Those events
+ * are only published on the node where the realm changed, so entries are also rebuilt once they are a minute old, for
+ * the other nodes of the cluster to pick up the change. The sender of a realm is only logged when it changes.
+ */
+public class AirshipSenderCache implements ProviderEventListener {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipSenderCache.class);
+
+    private final String senderEmail;
+    private final String senderName;
+    private final String replyTo;
+    private static final long MAX_AGE_NANOS = Duration.ofMinutes(1).toNanos();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private record Entry(AirshipSender sender, AirshipPayloadWriter payloadWriter, long resolvedAt) {
+    }
+
+    /**
+     * @param senderEmail sender address overriding the realm one, or {@code null}
+     * @param senderName  sender name overriding the realm one, or {@code null}
+     * @param replyTo     reply-to overriding the realm one, or {@code null}
+     */
+    public AirshipSenderCache(String senderEmail, String senderName, String replyTo) {
+        this.senderEmail = senderEmail;
+        this.senderName = senderName;
+        this.replyTo = replyTo;
+    }
+
+    public AirshipPayloadWriter getPayloadWriter(RealmModel realm) {
+        long now = System.nanoTime();
+        Entry entry = entries.get(realm.getId());
+        if (entry == null || now - entry.resolvedAt() >= MAX_AGE_NANOS) {
+            AirshipSender sender = resolve(realm.getSmtpConfig());
+            if (entry != null && sender.equals(entry.sender())) {
+                LOGGER.debugf("Email configuration for realm %s unchanged", realm.getName());
+                entry = new Entry(sender, entry.payloadWriter(), now);
+            } else {
+                LOGGER.infof("Email Configuration for realm %s:", realm.getName());
+                LOGGER.infof("Sender Email: %s", sender.email());
+                LOGGER.infof("Sender Name: %s", sender.name());
+                LOGGER.infof("Reply To: %s", sender.replyTo());
+                entry = new Entry(sender, new AirshipPayloadWriter(sender), now);
+            }
+            entries.put(realm.getId(), entry);
+        }
+        return entry.payloadWriter();
+    }
+
+    @Override
+    public void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmAttributeUpdateEvent updated) {
+            entries.remove(updated.getRealm().getId());
+        } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+            entries.remove(removed.getRealm().getId());
+        }
+    }
+
+    private AirshipSender resolve(Map<String, String> smtpConfig) {
+        return new AirshipSender(
+                senderEmail != null ? senderEmail : smtpConfig.get("from"),
+                senderName != null ? senderName : smtpConfig.get("fromDisplayName"),
+                replyTo != null ? replyTo : replyTo(smtpConfig));
+    }
+
+    /**
+     * @return the reply-to of the realm email settings, or {@code null} when they do not set one
+     */
+    private static String replyTo(Map<String, String> smtpConfig) {
+        String address = smtpConfig.get("replyTo");
+        if (address == null || address.isEmpty()) {
+            return null;
+        }
+        String displayName = smtpConfig.get("replyToDisplayName");
+        return displayName == null || displayName.isEmpty() ? address : displayName + " <" + address + ">";
+    }
+}
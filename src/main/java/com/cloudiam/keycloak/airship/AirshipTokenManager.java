@@ -0,0 +1,206 @@
+package com.cloudiam.keycloak.airship;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Access tokens of an Airship OAuth client, requested with the client credentials grant.
+ * <p>
+ * The current token is kept in memory and refreshed in the background once most of its lifetime has elapsed, so sends
+ * never wait for a token unless the background refresh keeps failing. Concurrent refreshes, whether from the background
+ * or from senders, share a single token request.
+ */
+public class AirshipTokenManager implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AirshipTokenManager.class);
+
+    // Refresh once this share of the token lifetime has elapsed
+    private static final double REFRESH_AT_LIFETIME_RATIO = 0.8;
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(5);
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record TokenResponse(@JsonProperty("access_token") String accessToken, @JsonProperty("expires_in") long expiresIn) {
+    }
+
+    private record Token(String value, long expiresAt) {
+
+        boolean isExpired() {
+            return System.nanoTime() - expiresAt >= 0;
+        }
+    }
+
+    private final HttpClient httpClient;
+    private final URI tokenUri;
+    private final String authorization;
+    private final String form;
+    private final Duration requestTimeout;
+    private final AirshipMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Token token;
+    private CompletableFuture<Token> refreshing;
+
+    public AirshipTokenManager(HttpClient httpClient, String appKey, AirshipAccount.OAuth oauth, Duration requestTimeout, AirshipMetrics metrics) {
+        this.httpClient = httpClient;
+        this.tokenUri = URI.create(oauth.tokenUrl());
+        String credentials = oauth.clientId() + ":" + oauth.clientSecret();
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        // Tokens are bound to the app key of the account
+        String form = "grant_type=client_credentials&sub=" + URLEncoder.encode("app:" + appKey, StandardCharsets.UTF_8);
+        if (oauth.scope() != null) {
+            form += "&scope=" + URLEncoder.encode(oauth.scope(), StandardCharsets.UTF_8);
+        }
+        this.form = form;
+        this.requestTimeout = requestTimeout;
+        this.metrics = metrics;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> Thread.ofPlatform().daemon().name("airship-token-refresh").unstarted(r));
+    }
+
+    /**
+     * @return the current access token, requested first if there is none or it expired
+     */
+    public String getToken() throws IOException, InterruptedException {
+        Token current = token;
+        if (current != null && !current.isExpired()) {
+            return current.value();
+        }
+        return await(refresh(current)).value();
+    }
+
+    /**
+     * Requests a new token in place of one Airship rejected, unless it was already replaced.
+     *
+     * @return the new access token
+     */
+    public String refresh(String rejected) throws IOException, InterruptedException {
+        Token current = token;
+        if (current != null && !current.value().equals(rejected)) {
+            return current.value();
+        }
+        LOGGER.info("Airship rejected the access token, requesting a new one");
+        return await(refresh(current)).value();
+    }
+
+    /**
+     * Requests the first token in the background.
+     */
+    public void prefetch() {
+        scheduler.execute(this::refreshInBackground);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Replaces the given token, sharing the request in flight if there is one.
+     */
+    private CompletableFuture<Token> refresh(Token stale) {
+        CompletableFuture<Token> future;
+        lock.lock();
+        try {
+            Token current = token;
+            if (current != stale && current != null && !current.isExpired()) {
+                return CompletableFuture.completedFuture(current);
+            }
+            if (refreshing != null) {
+                return refreshing;
+            }
+            future = new CompletableFuture<>();
+            refreshing = future;
+        } finally {
+            lock.unlock();
+        }
+
+        Token fetched = null;
+        try {
+            fetched = fetch();
+            future.complete(fetched);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            metrics.recordTokenRefresh(false);
+            future.completeExceptionally(e);
+        } finally {
+            lock.lock();
+            try {
+                if (fetched != null) {
+                    token = fetched;
+                }
+                refreshing = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return future;
+    }
+
+    private void refreshInBackground() {
+        Token current = token;
+        try {
+            Token fetched = await(refresh(current));
+            long lifetime = fetched.expiresAt() - System.nanoTime();
+            scheduler.schedule(this::refreshInBackground, (long) (lifetime * REFRESH_AT_LIFETIME_RATIO), TimeUnit.NANOSECONDS);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warnf("Failed to refresh the Airship access token, retrying in %s: %s", RETRY_DELAY, e.getMessage());
+            scheduler.schedule(this::refreshInBackground, RETRY_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Token fetch() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(tokenUri)
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("Accept", "application/json")
+                .header("Authorization", authorization)
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+        long start = System.nanoTime();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Airship token request failed: " + response.statusCode() + " - " + response.body());
+        }
+
+        TokenResponse body = JsonSerialization.readValue(response.body(), TokenResponse.class);
+        if (body.accessToken() == null || body.expiresIn() <= 0) {
+            throw new IOException("Airship token response has no access token or expiration");
+        }
+        metrics.recordTokenRefresh(true);
+        LOGGER.debugf("Airship access token refreshed, expires in %d s", body.expiresIn());
+        // Expiration counts from the request, the token may have been issued before the response arrived
+        return new Token(body.accessToken(), start + TimeUnit.SECONDS.toNanos(body.expiresIn()));
+    }
+
+    private static Token await(CompletableFuture<Token> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (e.getCause() instanceof InterruptedException) {
+                throw new IOException("Airship token request interrupted", e.getCause());
+            }
+            throw new IOException("Airship token request failed", e.getCause());
+        }
+    }
+}
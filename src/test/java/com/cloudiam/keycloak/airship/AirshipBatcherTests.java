@@ -0,0 +1,159 @@
+package com.cloudiam.keycloak.airship;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AirshipBatcherTests {
+
+    private static final Duration WINDOW = Duration.ofSeconds(5);
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final AirshipPayloadWriter PAYLOAD_WRITER = new AirshipPayloadWriter(new AirshipSender("noreply@example.com", "Example", null));
+
+    private final List<String> posts = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    void mergeEmailsWithSameContent() throws Exception {
+        var batcher = new AirshipBatcher(3, WINDOW, (description, payload, emails) -> posts.add(payload.asString()), metrics());
+
+        sendConcurrently(batcher, message("a@example.com", "Verify email"), message("b@example.com", "Verify email"),
+                message("c@example.com", "Verify email"));
+
+        assertThat(posts).hasSize(1);
+        assertThat(posts.get(0)).startsWith("{").contains("a@example.com", "b@example.com", "c@example.com");
+        assertThat(countOccurrences(posts.get(0), "\"subject\"")).isEqualTo(1);
+    }
+
+    @Test
+    void postDistinctContentsSeparately() throws Exception {
+        var batcher = new AirshipBatcher(4, WINDOW, (description, payload, emails) -> posts.add(payload.asString()), metrics());
+
+        sendConcurrently(batcher, message("a@example.com", "Verify email"), message("b@example.com", "Verify email"),
+                message("c@example.com", "Reset password"), message("d@example.com", "Update password"));
+
+        assertThat(posts).hasSize(3).allSatisfy(post -> assertThat(post).startsWith("{\"audience\""));
+        assertThat(posts).filteredOn(post -> post.contains("Verify email")).singleElement().asString().contains("a@example.com", "b@example.com");
+        assertThat(posts).filteredOn(post -> post.contains("Reset password")).singleElement().asString().contains("c@example.com");
+    }
+
+    @Test
+    void mergeEmailsOfSameTemplate() throws Exception {
+        var batcher = new AirshipBatcher(3, WINDOW, (description, payload, emails) -> posts.add(payload.asString()), metrics());
+
+        sendConcurrently(batcher, AirshipEmailMessage.ofTemplate("a@example.com", "verify-email", Map.of("link", "https://example.com/a")),
+                AirshipEmailMessage.ofTemplate("b@example.com", "verify-email", Map.of("link", "https://example.com/b")),
+                AirshipEmailMessage.ofTemplate("c@example.com", "reset-password", Map.of("link", "https://example.com/c")));
+
+        assertThat(posts).hasSize(2);
+        assertThat(posts).filteredOn(post -> post.contains("verify-email")).singleElement().asString()
+                .contains("a@example.com", "https://example.com/a", "b@example.com", "https://example.com/b");
+    }
+
+    @Test
+    void takeRateLimitTokenPerEmail() throws Exception {
+        List<Integer> tokens = Collections.synchronizedList(new ArrayList<>());
+        var batcher = new AirshipBatcher(3, WINDOW, (description, payload, emails) -> tokens.add(emails), metrics());
+
+        sendConcurrently(batcher, message("a@example.com", "Verify email"), message("b@example.com", "Verify email"),
+                message("c@example.com", "Verify email"));
+
+        assertThat(tokens).containsExactly(3);
+    }
+
+    @Test
+    void releaseSendersWhenPostingThrowsError() throws Exception {
+        var batcher = new AirshipBatcher(2, WINDOW, (description, payload, emails) -> {
+            throw new StackOverflowError();
+        }, metrics());
+
+        List<Throwable> outcomes = sendAll(batcher, message("a@example.com", "Verify email"), message("b@example.com", "Verify email"));
+
+        // The sender posting the batch gets the error, the other one is not left waiting
+        assertThat(outcomes).hasSize(2).hasAtLeastOneElementOfType(StackOverflowError.class).hasAtLeastOneElementOfType(EmailException.class);
+    }
+
+    @Test
+    void sendAloneAfterWindow() throws Exception {
+        var batcher = new AirshipBatcher(10, Duration.ofMillis(10), (description, payload, emails) -> posts.add(description), metrics());
+
+        sendConcurrently(batcher, message("a@example.com", "Verify email"));
+
+        assertThat(posts).containsExactly("a@example.com");
+    }
+
+    @Test
+    void sendOneByOneWhenBatchIsRejected() throws Exception {
+        var batcher = new AirshipBatcher(3, WINDOW, (description, payload, emails) -> {
+            posts.add(description);
+            if (description.startsWith("batch")) {
+                throw new AirshipApiException(400, "Bad Request");
+            }
+        }, metrics());
+
+        sendConcurrently(batcher, message("a@example.com", "Verify email"), message("b@example.com", "Verify email"),
+                message("c@example.com", "Verify email"));
+
+        assertThat(posts).hasSize(4).contains("batch of 3 emails", "a@example.com", "b@example.com", "c@example.com");
+    }
+
+    @Test
+    void failWholeBatchOnTransientError() throws Exception {
+        var batcher = new AirshipBatcher(2, WINDOW, (description, payload, emails) -> {
+            posts.add(description);
+            throw new AirshipApiException(503, "Service Unavailable");
+        }, metrics());
+
+        int failures = sendConcurrently(batcher, message("a@example.com", "Verify email"), message("b@example.com", "Verify email"));
+
+        assertThat(posts).containsExactly("batch of 2 emails");
+        assertThat(failures).isEqualTo(2);
+    }
+
+    private static int sendConcurrently(AirshipBatcher batcher, AirshipEmailMessage... messages) throws Exception {
+        List<Throwable> outcomes = sendAll(batcher, messages);
+        assertThat(outcomes).allMatch(EmailException.class::isInstance);
+        return outcomes.size();
+    }
+
+    /**
+     * @return what the sends threw
+     */
+    private static List<Throwable> sendAll(AirshipBatcher batcher, AirshipEmailMessage... messages) throws Exception {
+        var outcomes = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<>();
+        for (AirshipEmailMessage message : messages) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    batcher.send(PAYLOAD_WRITER, message, PAYLOAD_WRITER.write(message));
+                } catch (Throwable e) {
+                    outcomes.add(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            assertThat(thread.join(TIMEOUT)).isTrue();
+        }
+        return List.copyOf(outcomes);
+    }
+
+    private static AirshipEmailMessage message(String address, String subject) {
+        return new AirshipEmailMessage(address, subject, "Click the link", "<p>Click the link</p>");
+    }
+
+    private static AirshipMetrics metrics() {
+        return new AirshipMetrics(new SimpleMeterRegistry());
+    }
+
+    private static int countOccurrences(String text, String part) {
+        return text.split(part, -1).length - 1;
+    }
+}
@@ -0,0 +1,223 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AirshipBulkSendJobTests {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void sendUserIdsPageByPage() throws Exception {
+        var job = AirshipBulkSendJob.create(directory, "realm-id", request(userIds(25)));
+        List<Integer> pages = new ArrayList<>();
+
+        job.start(noSearch(), userIds -> {
+            synchronized (pages) {
+                pages.add(userIds.size());
+            }
+            return userIds.stream().map(userId -> result(userId, userId.equals("user-3") ? AirshipBulkSendJob.Outcome.FAILED : AirshipBulkSendJob.Outcome.SENT)).toList();
+        }, 10, 1);
+        job.join(TIMEOUT);
+
+        assertThat(pages).containsExactly(10, 10, 5);
+        AirshipBulkSendJob.Status status = job.getStatus();
+        assertThat(status.state()).isEqualTo(AirshipBulkSendJob.State.COMPLETED);
+        assertThat(status.total()).isEqualTo(25);
+        assertThat(status.cursor()).isEqualTo(25);
+        assertThat(status.sent()).isEqualTo(24);
+        assertThat(status.failed()).isEqualTo(1);
+        List<String> results = results(job);
+        assertThat(results).hasSize(25);
+        assertThat(results.get(0)).contains("\"user-0\"", "\"SENT\"");
+    }
+
+    @Test
+    void searchUntilPartialPage() throws Exception {
+        var job = AirshipBulkSendJob.create(directory, "realm-id", request(null));
+
+        job.start((first, max) -> IntStream.range(first, Math.min(first + max, 23)).mapToObj(i -> "user-" + i).toList(), sendAll(), 10, 2);
+        job.join(TIMEOUT);
+
+        assertThat(job.getStatus().state()).isEqualTo(AirshipBulkSendJob.State.COMPLETED);
+        assertThat(job.getStatus().total()).isEqualTo(-1);
+        assertThat(job.getStatus().sent()).isEqualTo(23);
+    }
+
+    @Test
+    void resumePausedJobAfterRestart() throws Exception {
+        var job = AirshipBulkSendJob.create(directory, "realm-id", request(userIds(30)));
+        var firstPage = new CountDownLatch(1);
+        var paused = new CountDownLatch(1);
+        job.start(noSearch(), userIds -> {
+            firstPage.countDown();
+            await(paused);
+            return sendAll().send(userIds);
+        }, 10, 1);
+        firstPage.await();
+        job.pause();
+        paused.countDown();
+        job.join(TIMEOUT);
+
+        var loaded = AirshipBulkSendJob.load(directory, job.getId());
+        assertThat(loaded.getStatus().state()).isEqualTo(AirshipBulkSendJob.State.PAUSED);
+        assertThat(loaded.getStatus().cursor()).isEqualTo(10);
+
+        List<String> resent = new ArrayList<>();
+        loaded.start(noSearch(), userIds -> {
+            synchronized (resent) {
+                resent.addAll(userIds);
+            }
+            return sendAll().send(userIds);
+        }, 10, 1);
+        loaded.join(TIMEOUT);
+
+        assertThat(resent).hasSize(20).doesNotContain("user-0", "user-9");
+        assertThat(loaded.getStatus().sent()).isEqualTo(30);
+        assertThat(results(loaded)).hasSize(30);
+    }
+
+    @Test
+    void loadRunningJobAsPaused() throws Exception {
+        var job = AirshipBulkSendJob.create(directory, "realm-id", request(userIds(10)));
+        var blocked = new CountDownLatch(1);
+        job.start(noSearch(), userIds -> {
+            await(blocked);
+            return sendAll().send(userIds);
+        }, 10, 1);
+
+        // Stands for a node that crashed while the job was running
+        assertThat(AirshipBulkSendJob.load(directory, job.getId()).getStatus().state()).isEqualTo(AirshipBulkSendJob.State.PAUSED);
+        blocked.countDown();
+        job.join(TIMEOUT);
+    }
+
+    @Test
+    void loadCompletedJobWithoutUserIds() throws Exception {
+        var job = AirshipBulkSendJob.create(directory, "realm-id", request(userIds(5)));
+        job.start(noSearch(), sendAll(), 10, 1);
+        job.join(TIMEOUT);
+        Files.delete(directory.resolve(job.getId() + ".ids"));
+
+        var loaded = AirshipBulkSendJob.load(directory, job.getId());
+
+        assertThat(loaded.getStatus().state()).isEqualTo(AirshipBulkSendJob.State.COMPLETED);
+        assertThat(loaded.getStatus().total()).isEqualTo(5);
+    }
+
+    @Test
+    void refuseDeletingJobStillSendingItsPage() throws Exception {
+        var job = AirshipBulkSendJob.create(directory, "realm-id", request(userIds(10)));
+        var firstPage = new CountDownLatch(1);
+        var paused = new CountDownLatch(1);
+        job.start(noSearch(), userIds -> {
+            firstPage.countDown();
+            await(paused);
+            return sendAll().send(userIds);
+        }, 10, 1);
+        firstPage.await();
+        job.pause();
+
+        assertThatThrownBy(job::delete).isInstanceOf(IllegalStateException.class);
+
+        paused.countDown();
+        job.join(TIMEOUT);
+        job.delete();
+        assertThat(directory).isEmptyDirectory();
+    }
+
+    @Test
+    void boundParallelism() throws Exception {
+        var job = AirshipBulkSendJob.create(directory, "realm-id", request(userIds(100)));
+        var inFlight = new AtomicInteger();
+        var maxInFlight = new AtomicInteger();
+
+        job.start(noSearch(), userIds -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+                return sendAll().send(userIds);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }, 50, 4);
+        job.join(TIMEOUT);
+
+        assertThat(maxInFlight.get()).isBetween(1, 4);
+        assertThat(job.getStatus().sent()).isEqualTo(100);
+    }
+
+    @Test
+    void failSliceAsAWhole() throws Exception {
+        var job = AirshipBulkSendJob.create(directory, "realm-id", request(userIds(4)));
+
+        job.start(noSearch(), userIds -> {
+            if (userIds.contains("user-0")) {
+                throw new IllegalStateException("Session closed");
+            }
+            return sendAll().send(userIds);
+        }, 10, 2);
+        job.join(TIMEOUT);
+
+        assertThat(job.getStatus().failed()).isEqualTo(2);
+        assertThat(job.getStatus().sent()).isEqualTo(2);
+        assertThat(results(job).get(0)).contains("Session closed");
+    }
+
+    private static AirshipBulkSendRequest request(List<String> userIds) {
+        return new AirshipBulkSendRequest(List.of("UPDATE_PASSWORD"), 43200, "account", null,
+                userIds == null ? "example.com" : null, null, userIds, null);
+    }
+
+    private static List<String> userIds(int count) {
+        return IntStream.range(0, count).mapToObj(i -> "user-" + i).toList();
+    }
+
+    private static AirshipBulkSendJob.Search noSearch() {
+        return (first, max) -> {
+            throw new AssertionError("Jobs with user ids do not search");
+        };
+    }
+
+    private static AirshipBulkSendJob.Sender sendAll() {
+        return userIds -> userIds.stream().map(userId -> result(userId, AirshipBulkSendJob.Outcome.SENT)).toList();
+    }
+
+    private static AirshipBulkSendJob.Result result(String userId, AirshipBulkSendJob.Outcome outcome) {
+        return new AirshipBulkSendJob.Result(userId, outcome, null);
+    }
+
+    private static List<String> results(AirshipBulkSendJob job) throws IOException {
+        var out = new ByteArrayOutputStream();
+        job.writeResults(out);
+        return out.toString(StandardCharsets.UTF_8).lines().toList();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.vault.VaultStringSecret;
+import org.keycloak.vault.VaultTranscriber;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AirshipBulkheadsTests {
+
+    private static final AirshipAccount DEFAULT_ACCOUNT = new AirshipAccount("https://go.airship.eu", "/api/create-and-send",
+            "vnd.urbanairship+json", "env-token", "env-app-key");
+
+    private final KeycloakSession session = mock(KeycloakSession.class);
+    private final Map<String, AirshipAccount> created = new HashMap<>();
+    private final AirshipBulkheads bulkheads = new AirshipBulkheads(DEFAULT_ACCOUNT, (name, account) -> {
+        created.put(name, account);
+        return mock(AirshipBulkhead.class);
+    });
+
+    @BeforeEach
+    void setUp() {
+        VaultTranscriber vault = mock(VaultTranscriber.class);
+        when(vault.getStringSecret(anyString())).thenAnswer(invocation -> {
+            String value = invocation.getArgument(0);
+            return secret(value.equals("${vault.tenant-token}") ? "vault-token" : value);
+        });
+        when(session.vault()).thenReturn(vault);
+    }
+
+    @Test
+    void useDefaultBulkheadWithoutRealmAccount() {
+        AirshipBulkhead bulkhead = bulkheads.get(session, realm("tenant-a", Map.of()));
+
+        assertThat(bulkhead).isSameAs(bulkheads.getDefault());
+        assertThat(created).containsOnly(Map.entry(AirshipBulkheads.DEFAULT_BULKHEAD, DEFAULT_ACCOUNT));
+    }
+
+    @Test
+    void useNamedBulkheadWithoutRealmAccount() {
+        Map<String, String> attributes = Map.of(AirshipBulkheads.BULKHEAD_ATTRIBUTE, "group");
+
+        AirshipBulkhead first = bulkheads.get(session, realm("tenant-a", attributes));
+        AirshipBulkhead second = bulkheads.get(session, realm("tenant-b", attributes));
+
+        assertThat(first).isSameAs(second).isNotSameAs(bulkheads.getDefault());
+        assertThat(created).containsEntry("group", DEFAULT_ACCOUNT);
+    }
+
+    @Test
+    void isolateRealmWithItsOwnAccount() {
+        AirshipBulkhead bulkhead = bulkheads.get(session, realm("tenant-a", Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "tenant-app-key",
+                AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "${vault.tenant-token}")));
+
+        assertThat(bulkhead).isNotSameAs(bulkheads.getDefault());
+        assertThat(created).containsEntry("tenant-a/tenant-app-key", new AirshipAccount(DEFAULT_ACCOUNT.domain(), DEFAULT_ACCOUNT.endpoint(),
+                DEFAULT_ACCOUNT.header(), "vault-token", "tenant-app-key"));
+    }
+
+    @Test
+    void useOAuthClientOfRealm() {
+        bulkheads.get(session, realm("tenant-a", Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "tenant-app-key",
+                AirshipBulkheads.OAUTH_CLIENT_ID_ATTRIBUTE, "tenant-client",
+                AirshipBulkheads.OAUTH_CLIENT_SECRET_ATTRIBUTE, "${vault.tenant-token}",
+                AirshipBulkheads.OAUTH_SCOPE_ATTRIBUTE, "nu")));
+
+        assertThat(created.get("tenant-a/tenant-app-key").oauth()).isEqualTo(new AirshipAccount.OAuth("tenant-client", "vault-token",
+                AirshipEmailFactory.DEFAULT_AIRSHIP_OAUTH_TOKEN_URL, "nu"));
+    }
+
+    @Test
+    void preferStaticAccessTokenOfRealmOverEnvironmentOAuthClient() {
+        var defaultOAuth = new AirshipAccount.OAuth("env-client", "env-secret", "https://oauth2.example.com/token", null);
+        var oauthBulkheads = new AirshipBulkheads(new AirshipAccount(DEFAULT_ACCOUNT.domain(), DEFAULT_ACCOUNT.endpoint(),
+                DEFAULT_ACCOUNT.header(), null, DEFAULT_ACCOUNT.appKey(), defaultOAuth), (name, account) -> {
+            created.put(name, account);
+            return mock(AirshipBulkhead.class);
+        });
+
+        oauthBulkheads.get(session, realm("tenant-a", Map.of(AirshipBulkheads.APP_KEY_ATTRIBUTE, DEFAULT_ACCOUNT.appKey())));
+        oauthBulkheads.get(session, realm("tenant-b", Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "other-app-key",
+                AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "tenant-token")));
+
+        assertThat(created.get("tenant-a/env-app-key").oauth()).isEqualTo(defaultOAuth);
+        assertThat(created.get("tenant-b/other-app-key").oauth()).isNull();
+        assertThat(created.get("tenant-b/other-app-key").accessToken()).isEqualTo("tenant-token");
+    }
+
+    @Test
+    void requireCredentialsOfRealmAppKey() {
+        var defaultOAuth = new AirshipAccount.OAuth("env-client", "env-secret", "https://oauth2.example.com/token", null);
+        var oauthBulkheads = new AirshipBulkheads(new AirshipAccount(DEFAULT_ACCOUNT.domain(), DEFAULT_ACCOUNT.endpoint(),
+                DEFAULT_ACCOUNT.header(), null, DEFAULT_ACCOUNT.appKey(), defaultOAuth), (name, account) -> {
+            created.put(name, account);
+            return mock(AirshipBulkhead.class);
+        });
+
+        // The credentials of the environment are issued for another app
+        assertThatThrownBy(() -> oauthBulkheads.get(session, realm("tenant-a", Map.of(AirshipBulkheads.APP_KEY_ATTRIBUTE, "tenant-app-key"))))
+                .isInstanceOf(IllegalStateException.class);
+        assertThat(created).isEmpty();
+    }
+
+    @Test
+    void shareBulkheadOfTenantGroup() {
+        Map<String, String> attributes = Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "group-app-key",
+                AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "group-token",
+                AirshipBulkheads.BULKHEAD_ATTRIBUTE, "group");
+
+        AirshipBulkhead first = bulkheads.get(session, realm("tenant-a", attributes));
+        AirshipBulkhead second = bulkheads.get(session, realm("tenant-b", attributes));
+
+        assertThat(first).isSameAs(second);
+        assertThat(created).containsOnlyKeys("group/group-app-key");
+    }
+
+    @Test
+    void separateGroupMembersWithDifferentAppKeys() {
+        AirshipBulkhead first = bulkheads.get(session, realm("tenant-a", Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "group-app-key",
+                AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "group-token",
+                AirshipBulkheads.BULKHEAD_ATTRIBUTE, "group")));
+        AirshipBulkhead second = bulkheads.get(session, realm("tenant-b", Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "other-app-key",
+                AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "other-token",
+                AirshipBulkheads.BULKHEAD_ATTRIBUTE, "group")));
+
+        assertThat(first).isNotSameAs(second);
+        assertThat(created).containsOnlyKeys("group/group-app-key", "group/other-app-key");
+        // The credentials of the first member are left untouched
+        verify(first, never()).update(created.get("group/other-app-key"));
+    }
+
+    @Test
+    void isolateRealmNamedLikeDefaultBulkhead() {
+        AirshipBulkhead bulkhead = bulkheads.get(session, realm(AirshipBulkheads.DEFAULT_BULKHEAD, Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "tenant-app-key",
+                AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "tenant-token")));
+
+        assertThat(bulkhead).isNotSameAs(bulkheads.getDefault());
+        assertThat(created).containsEntry(AirshipBulkheads.DEFAULT_BULKHEAD, DEFAULT_ACCOUNT)
+                .containsKey(AirshipBulkheads.DEFAULT_BULKHEAD + "/tenant-app-key");
+        verify(bulkheads.getDefault(), never()).update(created.get(AirshipBulkheads.DEFAULT_BULKHEAD + "/tenant-app-key"));
+    }
+
+    @Test
+    void resolveRealmAgainAfterAttributeUpdate() {
+        Map<String, String> attributes = new HashMap<>(Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "tenant-app-key",
+                AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "tenant-token"));
+        RealmModel realm = realm("tenant-a", attributes);
+        AirshipBulkhead bulkhead = bulkheads.get(session, realm);
+
+        attributes.put(AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "rotated-token");
+        bulkheads.get(session, realm);
+        verify(bulkhead, never()).update(new AirshipAccount(DEFAULT_ACCOUNT.domain(), DEFAULT_ACCOUNT.endpoint(),
+                DEFAULT_ACCOUNT.header(), "rotated-token", "tenant-app-key"));
+
+        bulkheads.onEvent(updated(realm));
+
+        assertThat(bulkheads.get(session, realm)).isSameAs(bulkhead);
+        verify(bulkhead, never()).close();
+        verify(bulkhead).update(new AirshipAccount(DEFAULT_ACCOUNT.domain(), DEFAULT_ACCOUNT.endpoint(),
+                DEFAULT_ACCOUNT.header(), "rotated-token", "tenant-app-key"));
+    }
+
+    @Test
+    void closeBulkheadLeftByAppKeyChange() {
+        Map<String, String> attributes = new HashMap<>(Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "tenant-app-key",
+                AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "tenant-token"));
+        RealmModel realm = realm("tenant-a", attributes);
+        AirshipBulkhead previous = bulkheads.get(session, realm);
+
+        attributes.put(AirshipBulkheads.APP_KEY_ATTRIBUTE, "new-app-key");
+        bulkheads.onEvent(updated(realm));
+        AirshipBulkhead current = bulkheads.get(session, realm);
+
+        assertThat(current).isNotSameAs(previous);
+        verify(previous).close();
+        verify(current, never()).close();
+    }
+
+    @Test
+    void keepBulkheadOfOtherRealms() {
+        Map<String, String> attributes = Map.of(
+                AirshipBulkheads.APP_KEY_ATTRIBUTE, "group-app-key",
+                AirshipBulkheads.ACCESS_TOKEN_ATTRIBUTE, "group-token",
+                AirshipBulkheads.BULKHEAD_ATTRIBUTE, "group");
+        RealmModel leaving = realm("tenant-a", new HashMap<>(attributes));
+        AirshipBulkhead group = bulkheads.get(session, leaving);
+        bulkheads.get(session, realm("tenant-b", attributes));
+
+        RealmModel.RealmRemovedEvent event = mock(RealmModel.RealmRemovedEvent.class);
+        when(event.getRealm()).thenReturn(leaving);
+        bulkheads.onEvent(event);
+
+        verify(group, never()).close();
+    }
+
+    @Test
+    void keepDefaultBulkhead() {
+        RealmModel realm = realm("tenant-a", new HashMap<>());
+        AirshipBulkhead bulkhead = bulkheads.get(session, realm);
+
+        RealmModel.RealmRemovedEvent event = mock(RealmModel.RealmRemovedEvent.class);
+        when(event.getRealm()).thenReturn(realm);
+        bulkheads.onEvent(event);
+
+        assertThat(bulkhead).isSameAs(bulkheads.getDefault());
+        verify(bulkhead, never()).close();
+    }
+
+    private static RealmModel.RealmAttributeUpdateEvent updated(RealmModel realm) {
+        RealmModel.RealmAttributeUpdateEvent event = mock(RealmModel.RealmAttributeUpdateEvent.class);
+        when(event.getRealm()).thenReturn(realm);
+        return event;
+    }
+
+    private static RealmModel realm(String name, Map<String, String> attributes) {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(name + "-id");
+        when(realm.getName()).thenReturn(name);
+        when(realm.getAttribute(anyString())).thenAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+        return realm;
+    }
+
+    private static VaultStringSecret secret(String value) {
+        VaultStringSecret secret = mock(VaultStringSecret.class);
+        when(secret.get()).thenReturn(Optional.of(value));
+        return secret;
+    }
+}
@@ -0,0 +1,106 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AirshipCircuitBreakerTests {
+
+    private static final long FAST = Duration.ofMillis(10).toNanos();
+    private static final long SLOW = Duration.ofSeconds(2).toNanos();
+
+    @Test
+    void openWhenFailureRateIsReached() {
+        var circuitBreaker = new AirshipCircuitBreaker(10, 4, 50, Duration.ofSeconds(1), 100, Duration.ofMinutes(1), 2);
+        call(circuitBreaker, FAST, false);
+        call(circuitBreaker, FAST, true);
+        call(circuitBreaker, FAST, false);
+        assertThat(circuitBreaker.getState()).isEqualTo(AirshipCircuitBreaker.State.CLOSED);
+
+        call(circuitBreaker, FAST, true);
+        assertThat(circuitBreaker.isOpen()).isTrue();
+        assertThat(circuitBreaker.tryAcquire()).isEqualTo(AirshipCircuitBreaker.REJECTED);
+    }
+
+    @Test
+    void openWhenSlowCallRateIsReached() {
+        var circuitBreaker = new AirshipCircuitBreaker(10, 2, 100, Duration.ofSeconds(1), 100, Duration.ofMinutes(1), 2);
+        call(circuitBreaker, SLOW, false);
+        call(circuitBreaker, SLOW, false);
+
+        assertThat(circuitBreaker.isOpen()).isTrue();
+    }
+
+    @Test
+    void closeWhenProbesSucceed() {
+        var circuitBreaker = new AirshipCircuitBreaker(10, 1, 50, Duration.ofSeconds(1), 100, Duration.ZERO, 2);
+        call(circuitBreaker, FAST, true);
+
+        assertThat(circuitBreaker.getState()).isEqualTo(AirshipCircuitBreaker.State.HALF_OPEN);
+        long firstProbe = circuitBreaker.tryAcquire();
+        long secondProbe = circuitBreaker.tryAcquire();
+        assertThat(firstProbe).isNotEqualTo(AirshipCircuitBreaker.REJECTED);
+        assertThat(secondProbe).isNotEqualTo(AirshipCircuitBreaker.REJECTED);
+        assertThat(circuitBreaker.tryAcquire()).isEqualTo(AirshipCircuitBreaker.REJECTED);
+
+        circuitBreaker.onResult(firstProbe, FAST, false);
+        circuitBreaker.onResult(secondProbe, FAST, false);
+        assertThat(circuitBreaker.getState()).isEqualTo(AirshipCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void openAgainWhenProbesFail() {
+        var circuitBreaker = new AirshipCircuitBreaker(10, 1, 50, Duration.ofSeconds(1), 100, Duration.ofMillis(50), 2);
+        call(circuitBreaker, FAST, true);
+        await(Duration.ofMillis(60));
+
+        long probe = circuitBreaker.tryAcquire();
+        assertThat(probe).isNotEqualTo(AirshipCircuitBreaker.REJECTED);
+        circuitBreaker.onResult(probe, FAST, true);
+        assertThat(circuitBreaker.isOpen()).isTrue();
+    }
+
+    @Test
+    void ignoreCallsStartedBeforeHalfOpen() {
+        var circuitBreaker = new AirshipCircuitBreaker(10, 1, 50, Duration.ofSeconds(1), 100, Duration.ofMillis(50), 1);
+        long startedWhileClosed = circuitBreaker.tryAcquire();
+        call(circuitBreaker, FAST, true);
+        await(Duration.ofMillis(60));
+        assertThat(circuitBreaker.getState()).isEqualTo(AirshipCircuitBreaker.State.HALF_OPEN);
+
+        // A success of the closed circuit is not a probe
+        circuitBreaker.onResult(startedWhileClosed, FAST, false);
+        assertThat(circuitBreaker.getState()).isEqualTo(AirshipCircuitBreaker.State.HALF_OPEN);
+
+        long probe = circuitBreaker.tryAcquire();
+        assertThat(probe).isNotEqualTo(AirshipCircuitBreaker.REJECTED);
+        circuitBreaker.onResult(probe, FAST, false);
+        assertThat(circuitBreaker.getState()).isEqualTo(AirshipCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void giveBackCancelledProbe() {
+        var circuitBreaker = new AirshipCircuitBreaker(10, 1, 50, Duration.ofSeconds(1), 100, Duration.ZERO, 1);
+        call(circuitBreaker, FAST, true);
+
+        circuitBreaker.onCancelled(circuitBreaker.tryAcquire());
+
+        assertThat(circuitBreaker.tryAcquire()).isNotEqualTo(AirshipCircuitBreaker.REJECTED);
+    }
+
+    private static void call(AirshipCircuitBreaker circuitBreaker, long durationNanos, boolean failure) {
+        long permit = circuitBreaker.tryAcquire();
+        assertThat(permit).isNotEqualTo(AirshipCircuitBreaker.REJECTED);
+        circuitBreaker.onResult(permit, durationNanos, failure);
+    }
+
+    private static void await(Duration duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AirshipCompressorTests {
+
+    private static final AirshipPayload HTML = payload("<p>Click the link below to verify your email address.</p>".repeat(100));
+
+    @Test
+    void compressWithGzip() throws IOException {
+        var compressor = new AirshipCompressor(AirshipCompressor.Encoding.GZIP, 6, 1024);
+        AirshipPayload compressed = compressor.compress(HTML);
+
+        assertThat(compressed.length()).isLessThan(HTML.length() / 10);
+        assertThat(decompress(new GZIPInputStream(input(compressed)))).isEqualTo(HTML.asString());
+        // Pooled deflaters are reset between payloads
+        assertThat(decompress(new GZIPInputStream(input(compressor.compress(HTML))))).isEqualTo(HTML.asString());
+    }
+
+    @Test
+    void compressWithDeflate() throws IOException {
+        var compressor = new AirshipCompressor(AirshipCompressor.Encoding.DEFLATE, 6, 1024);
+        AirshipPayload compressed = compressor.compress(HTML);
+
+        assertThat(decompress(new InflaterInputStream(input(compressed)))).isEqualTo(HTML.asString());
+    }
+
+    @Test
+    void skipPayloadsBelowThreshold() {
+        var compressor = new AirshipCompressor(AirshipCompressor.Encoding.GZIP, 6, HTML.length() + 1);
+
+        assertThat(compressor.compress(HTML)).isNull();
+    }
+
+    @Test
+    void skipPayloadsThatDoNotShrink() {
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        var compressor = new AirshipCompressor(AirshipCompressor.Encoding.GZIP, 6, 1024);
+
+        assertThat(compressor.compress(new AirshipPayload(random, random.length))).isNull();
+    }
+
+    private static AirshipPayload payload(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return new AirshipPayload(bytes, bytes.length);
+    }
+
+    private static InputStream input(AirshipPayload payload) {
+        return new ByteArrayInputStream(payload.bytes(), 0, payload.length());
+    }
+
+    private static String decompress(InputStream input) throws IOException {
+        try (input) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AirshipConcurrencyLimiterTests {
+
+    private static final long LATENCY = Duration.ofMillis(50).toNanos();
+
+    @Test
+    void rejectCallsAboveLimitAfterMaxWait() throws EmailException {
+        var limiter = new AirshipConcurrencyLimiter(2, 1, 10, Duration.ofMillis(10));
+        limiter.acquire();
+        limiter.acquire();
+
+        assertThatThrownBy(limiter::acquire).isInstanceOf(EmailException.class);
+        assertThat(limiter.getInFlight()).isEqualTo(2);
+        assertThat(limiter.getRejected()).isEqualTo(1);
+    }
+
+    @Test
+    void growLimitWhileLatencyIsStable() throws EmailException {
+        var limiter = new AirshipConcurrencyLimiter(4, 1, 10, Duration.ofMillis(10));
+        for (int i = 0; i < 50; i++) {
+            saturate(limiter, LATENCY);
+        }
+
+        assertThat(limiter.getLimit()).isEqualTo(10);
+        assertThat(limiter.getInFlight()).isZero();
+    }
+
+    @Test
+    void shrinkLimitWhenLatencyRises() throws EmailException {
+        var limiter = new AirshipConcurrencyLimiter(10, 1, 10, Duration.ofMillis(10));
+        for (int i = 0; i < 50; i++) {
+            saturate(limiter, LATENCY);
+        }
+        saturate(limiter, LATENCY * 10);
+        saturate(limiter, LATENCY * 10);
+
+        assertThat(limiter.getLimit()).isLessThan(10);
+    }
+
+    @Test
+    void halveLimitWhenRateLimited() throws EmailException {
+        var limiter = new AirshipConcurrencyLimiter(8, 1, 10, Duration.ofMillis(10));
+        limiter.release(limiter.acquire(), true);
+        assertThat(limiter.getLimit()).isEqualTo(4);
+
+        for (int i = 0; i < 5; i++) {
+            limiter.release(limiter.acquire(), true);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(1);
+    }
+
+    private static void saturate(AirshipConcurrencyLimiter limiter, long latency) throws EmailException {
+        int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < limit; i++) {
+            limiter.onCallCompleted(latency, false);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AirshipDeduplicatorTests {
+
+    private static final AirshipEmailMessage VERIFY = new AirshipEmailMessage("jane@example.com", "Verify email", "Link: 1", "<a>1</a>");
+
+    @Test
+    void suppressIdenticalEmailWithinWindow() {
+        var deduplicator = new AirshipDeduplicator(Duration.ofMinutes(1), 100, AirshipDeduplicator.Key.CONTENT);
+
+        assertThat(deduplicator.tryAcquire(deduplicator.digest(VERIFY))).isTrue();
+        assertThat(deduplicator.tryAcquire(deduplicator.digest(VERIFY))).isFalse();
+        assertThat(deduplicator.tryAcquire(deduplicator.digest(withBody(VERIFY, "Link: 2")))).isTrue();
+        assertThat(deduplicator.tryAcquire(deduplicator.digest(withAddress(VERIFY, "john@example.com")))).isTrue();
+    }
+
+    @Test
+    void ignoreBodiesWhenKeyedOnSubject() {
+        var deduplicator = new AirshipDeduplicator(Duration.ofMinutes(1), 100, AirshipDeduplicator.Key.SUBJECT);
+
+        assertThat(deduplicator.tryAcquire(deduplicator.digest(VERIFY))).isTrue();
+        assertThat(deduplicator.tryAcquire(deduplicator.digest(withBody(VERIFY, "Link: 2")))).isFalse();
+    }
+
+    @Test
+    void sendAgainAfterWindow() throws InterruptedException {
+        var deduplicator = new AirshipDeduplicator(Duration.ofMillis(20), 100, AirshipDeduplicator.Key.CONTENT);
+        long digest = deduplicator.digest(VERIFY);
+        deduplicator.tryAcquire(digest);
+
+        Thread.sleep(30);
+        assertThat(deduplicator.tryAcquire(digest)).isTrue();
+        assertThat(deduplicator.size()).isEqualTo(1);
+    }
+
+    @Test
+    void forgetOldestEmailsAboveMaxEntries() {
+        var deduplicator = new AirshipDeduplicator(Duration.ofMinutes(1), 2, AirshipDeduplicator.Key.CONTENT);
+        long first = deduplicator.digest(VERIFY);
+        deduplicator.tryAcquire(first);
+        deduplicator.tryAcquire(deduplicator.digest(withAddress(VERIFY, "john@example.com")));
+        deduplicator.tryAcquire(deduplicator.digest(withAddress(VERIFY, "joe@example.com")));
+
+        assertThat(deduplicator.size()).isEqualTo(2);
+        assertThat(deduplicator.tryAcquire(first)).isTrue();
+    }
+
+    @Test
+    void sendAgainAfterRelease() {
+        var deduplicator = new AirshipDeduplicator(Duration.ofMinutes(1), 100, AirshipDeduplicator.Key.CONTENT);
+        long digest = deduplicator.digest(VERIFY);
+        deduplicator.tryAcquire(digest);
+        deduplicator.release(digest);
+
+        assertThat(deduplicator.tryAcquire(digest)).isTrue();
+    }
+
+    private static AirshipEmailMessage withBody(AirshipEmailMessage message, String textBody) {
+        return new AirshipEmailMessage(message.address(), message.subject(), textBody, message.htmlBody());
+    }
+
+    private static AirshipEmailMessage withAddress(AirshipEmailMessage message, String address) {
+        return new AirshipEmailMessage(address, message.subject(), message.textBody(), message.htmlBody());
+    }
+}
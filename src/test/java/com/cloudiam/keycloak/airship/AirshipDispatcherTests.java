@@ -0,0 +1,176 @@
+package com.cloudiam.keycloak.airship;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.email.EmailException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AirshipDispatcherTests {
+
+    private static final AirshipPayloadWriter PAYLOAD_WRITER = new AirshipPayloadWriter(new AirshipSender("noreply@example.com", "Example", null));
+    private static final AirshipEmailMessage VERIFY = new AirshipEmailMessage("jane@example.com", "Verify email", "Text", null);
+
+    @TempDir
+    Path directory;
+
+    private final AirshipHttpClient httpClient = mock(AirshipHttpClient.class);
+    // Half-opens as soon as it opens, with a single probe
+    private final AirshipCircuitBreaker circuitBreaker = new AirshipCircuitBreaker(10, 10, 50, Duration.ofSeconds(5), 100, Duration.ZERO, 1);
+    private AirshipOutbox outbox;
+    private AirshipDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        outbox = new AirshipOutbox(directory, Duration.ofMillis(50), Duration.ofMinutes(10));
+        // Failed attempts are not retried, so each send is a single call
+        var retryPolicy = new AirshipRetryPolicy(1, Duration.ofMillis(10), Duration.ofMillis(10), Duration.ofSeconds(1), false, 1.0, 10);
+        var concurrencyLimiter = new AirshipConcurrencyLimiter(10, 1, 10, Duration.ofSeconds(1));
+        dispatcher = new AirshipDispatcher(httpClient, outbox, retryPolicy, null, concurrencyLimiter, circuitBreaker,
+                new AirshipMetrics(new SimpleMeterRegistry()), 1, Duration.ZERO);
+    }
+
+    @AfterEach
+    void tearDown() {
+        outbox.close();
+    }
+
+    @Test
+    void acknowledgeSentEmail() throws Exception {
+        when(httpClient.send(any())).thenReturn(response(202));
+
+        dispatcher.send(PAYLOAD_WRITER, VERIFY, PAYLOAD_WRITER.write(VERIFY), null);
+
+        assertThat(outbox.size()).isZero();
+    }
+
+    @Test
+    void acknowledgeEmailRejectedForGood() throws Exception {
+        when(httpClient.send(any())).thenReturn(response(400));
+
+        assertThatThrownBy(() -> dispatcher.send(PAYLOAD_WRITER, VERIFY, PAYLOAD_WRITER.write(VERIFY), null)).isInstanceOf(AirshipApiException.class);
+
+        assertThat(outbox.size()).isZero();
+        assertThat(outbox.takeReleased()).isEmpty();
+    }
+
+    @Test
+    void replayEmailThatFailedTransiently() throws Exception {
+        when(httpClient.send(any())).thenReturn(response(503), response(202));
+
+        // The email is sent by the replay, its caller must not see it failed
+        dispatcher.send(PAYLOAD_WRITER, VERIFY, PAYLOAD_WRITER.write(VERIFY), null);
+        assertThat(outbox.size()).isEqualTo(1);
+
+        dispatcher.replay();
+
+        assertThat(outbox.size()).isZero();
+        verify(httpClient, times(2)).send(any());
+    }
+
+    @Test
+    void replayEmailThatFailedToConnect() throws Exception {
+        when(httpClient.send(any())).thenThrow(new ConnectException("Connection refused")).thenReturn(response(202));
+
+        dispatcher.send(PAYLOAD_WRITER, VERIFY, PAYLOAD_WRITER.write(VERIFY), null);
+        dispatcher.replay();
+
+        assertThat(outbox.size()).isZero();
+        verify(httpClient, times(2)).send(any());
+    }
+
+    @Test
+    void dropEmailThatMayHaveBeenProcessed() throws Exception {
+        when(httpClient.send(any())).thenThrow(new IOException("Connection reset"));
+
+        assertThatThrownBy(() -> dispatcher.send(PAYLOAD_WRITER, VERIFY, PAYLOAD_WRITER.write(VERIFY), null)).isInstanceOf(EmailException.class);
+        dispatcher.replay();
+
+        assertThat(outbox.size()).isZero();
+        verify(httpClient, times(1)).send(any());
+    }
+
+    @Test
+    void dropEmailThatFailedWithUnsafeStatus() throws Exception {
+        when(httpClient.send(any())).thenReturn(response(502));
+
+        assertThatThrownBy(() -> dispatcher.send(PAYLOAD_WRITER, VERIFY, PAYLOAD_WRITER.write(VERIFY), null)).isInstanceOf(AirshipApiException.class);
+
+        assertThat(outbox.size()).isZero();
+        assertThat(outbox.takeReleased()).isEmpty();
+    }
+
+    @Test
+    void fallBackWhenHalfOpenCircuitRejects() throws Exception {
+        takeLastProbe();
+        List<AirshipEmailMessage> fallbacks = new ArrayList<>();
+
+        dispatcher.send(PAYLOAD_WRITER, VERIFY, PAYLOAD_WRITER.write(VERIFY), fallbacks::add);
+
+        assertThat(dispatcher.isCircuitOpen()).isFalse();
+        assertThat(fallbacks).containsExactly(VERIFY);
+        assertThat(outbox.size()).isZero();
+        verify(httpClient, never()).send(any());
+    }
+
+    @Test
+    void keepRejectedEmailWithoutFallback() throws Exception {
+        takeLastProbe();
+
+        dispatcher.send(PAYLOAD_WRITER, VERIFY, PAYLOAD_WRITER.write(VERIFY), null);
+
+        assertThat(outbox.size()).isEqualTo(1);
+        verify(httpClient, never()).send(any());
+    }
+
+    @Test
+    void fallBackWhenQueuedEmailIsRejected() throws Exception {
+        List<AirshipEmailMessage> fallbacks = new ArrayList<>();
+        AirshipSendQueue.Delivery delivery = dispatcher.deferred(PAYLOAD_WRITER, VERIFY, PAYLOAD_WRITER.write(VERIFY), fallbacks::add);
+        delivery.accepted();
+
+        // The circuit opens while the email waits in the queue
+        takeLastProbe();
+        delivery.deliver();
+
+        assertThat(fallbacks).containsExactly(VERIFY);
+        assertThat(outbox.size()).isZero();
+    }
+
+    private void takeLastProbe() {
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.onResult(circuitBreaker.tryAcquire(), 0, true);
+        }
+        assertThat(circuitBreaker.getState()).isEqualTo(AirshipCircuitBreaker.State.HALF_OPEN);
+        assertThat(circuitBreaker.tryAcquire()).isNotEqualTo(AirshipCircuitBreaker.REJECTED);
+    }
+
+    @SuppressWarnings("unchecked")
+    static HttpResponse<String> response(int status) {
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(status);
+        when(response.body()).thenReturn("{}");
+        when(response.headers()).thenReturn(HttpHeaders.of(Map.of(), (name, value) -> true));
+        return response;
+    }
+}
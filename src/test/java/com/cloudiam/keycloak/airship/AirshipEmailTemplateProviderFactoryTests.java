@@ -0,0 +1,24 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AirshipEmailTemplateProviderFactoryTests {
+
+    @Test
+    void parseTemplateIds() {
+        assertThat(AirshipEmailTemplateProviderFactory.parseTemplateIds("email-verification=tpl-1, password-reset = tpl-2"))
+                .isEqualTo(Map.of("email-verification", "tpl-1", "password-reset", "tpl-2"));
+        assertThat(AirshipEmailTemplateProviderFactory.parseTemplateIds(null)).isEmpty();
+    }
+
+    @Test
+    void rejectInvalidMapping() {
+        assertThatThrownBy(() -> AirshipEmailTemplateProviderFactory.parseTemplateIds("email-verification"))
+                .isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,105 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AirshipEmailTemplateProviderTests {
+
+    private static final Map<String, Object> VERIFY_ATTRIBUTES = Map.of(
+            "link", "https://example.com/verify",
+            "linkExpiration", 5,
+            "user", new Object());
+
+    private final KeycloakSession session = mock(KeycloakSession.class);
+    private final KeycloakContext context = mock(KeycloakContext.class);
+    private final RealmModel realm = mock(RealmModel.class);
+    private final UserModel user = mock(UserModel.class);
+    private final AirshipEmailProvider airship = mock(AirshipEmailProvider.class);
+    private AirshipEmailTemplateProvider provider;
+
+    @BeforeEach
+    void setUp() throws EmailException {
+        when(session.getContext()).thenReturn(context);
+        when(session.getProvider(EmailSenderProvider.class)).thenReturn(airship);
+        when(context.resolveLocale(user)).thenReturn(Locale.ENGLISH);
+        when(realm.getName()).thenReturn("tenant");
+        when(user.getUsername()).thenReturn("jane");
+        when(user.getEmail()).thenReturn("jane@example.com");
+        when(airship.canSendTemplate()).thenReturn(true);
+
+        provider = spy(new AirshipEmailTemplateProvider(session, Map.of("email-verification", "tpl-verify")));
+        doNothing().when(provider).sendRendered(anyString(), anyList(), anyString(), anyMap());
+        provider.setRealm(realm);
+        provider.setUser(user);
+    }
+
+    @Test
+    void sendMappedEmailAsTemplate() throws EmailException {
+        provider.send("emailVerificationSubject", List.of(), "email-verification.ftl", VERIFY_ATTRIBUTES);
+
+        assertThat(sentSubstitutions()).containsOnly(
+                Map.entry("username", "jane"),
+                Map.entry("locale", "en"),
+                Map.entry("realmName", "tenant"),
+                Map.entry("link", "https://example.com/verify"),
+                Map.entry("linkExpiration", "5"));
+        verify(provider, never()).sendRendered(anyString(), anyList(), anyString(), anyMap());
+    }
+
+    @Test
+    void leaveOutReservedAttributes() throws EmailException {
+        provider.send("emailVerificationSubject", List.of(), "email-verification.ftl",
+                Map.of("link", "https://example.com/verify", "ua_address", "mallory@example.com"));
+
+        assertThat(sentSubstitutions()).containsEntry("link", "https://example.com/verify").doesNotContainKey("ua_address");
+    }
+
+    @Test
+    void renderEmailWithoutMappedTemplate() throws EmailException {
+        provider.send("passwordResetSubject", List.of(), "password-reset.ftl", VERIFY_ATTRIBUTES);
+
+        verify(provider).sendRendered("passwordResetSubject", List.of(), "password-reset.ftl", VERIFY_ATTRIBUTES);
+        verify(airship, never()).sendTemplate(any(), any(), any());
+    }
+
+    @Test
+    void renderEmailWhenAirshipCannotSendTemplates() throws EmailException {
+        when(airship.canSendTemplate()).thenReturn(false);
+
+        provider.send("emailVerificationSubject", List.of(), "email-verification.ftl", VERIFY_ATTRIBUTES);
+
+        verify(provider).sendRendered("emailVerificationSubject", List.of(), "email-verification.ftl", VERIFY_ATTRIBUTES);
+        verify(airship, never()).sendTemplate(any(), any(), any());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> sentSubstitutions() throws EmailException {
+        ArgumentCaptor<Map<String, String>> substitutions = ArgumentCaptor.forClass(Map.class);
+        verify(airship).sendTemplate(eq("jane@example.com"), eq("tpl-verify"), substitutions.capture());
+        return substitutions.getValue();
+    }
+}
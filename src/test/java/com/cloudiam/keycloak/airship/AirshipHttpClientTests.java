@@ -0,0 +1,144 @@
+package com.cloudiam.keycloak.airship;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AirshipHttpClientTests {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final AirshipPayload PAYLOAD = new AirshipPayload("{}".getBytes(StandardCharsets.UTF_8), 2);
+
+    // Client id of each token request, and Authorization header of each send
+    private final List<String> tokenRequests = new CopyOnWriteArrayList<>();
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private AirshipHttpClient httpClient;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/token", this::token);
+        server.createContext("/api/create-and-send", this::send);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        httpClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    void sendWithStaticAccessToken() throws Exception {
+        httpClient = client(account("static-token", null));
+
+        assertThat(httpClient.send(PAYLOAD).statusCode()).isEqualTo(202);
+
+        assertThat(authorizations).containsExactly("Bearer static-token");
+        assertThat(tokenRequests).isEmpty();
+    }
+
+    @Test
+    void prefetchTokenOfOAuthClientSetByUpdate() throws Exception {
+        httpClient = client(account("static-token", null));
+
+        httpClient.update(account(null, "tenant-client"));
+
+        awaitTokenRequests(1);
+        assertThat(httpClient.send(PAYLOAD).statusCode()).isEqualTo(202);
+        assertThat(authorizations).containsExactly("Bearer tenant-client-token");
+        assertThat(tokenRequests).containsExactly("tenant-client");
+    }
+
+    @Test
+    void prefetchTokenOfReplacingOAuthClient() throws Exception {
+        httpClient = client(account(null, "tenant-client"));
+        httpClient.warmUp();
+        awaitTokenRequests(1);
+
+        httpClient.update(account(null, "rotated-client"));
+
+        awaitTokenRequests(2);
+        assertThat(httpClient.send(PAYLOAD).statusCode()).isEqualTo(202);
+        assertThat(authorizations).containsExactly("Bearer rotated-client-token");
+        assertThat(tokenRequests).containsExactly("tenant-client", "rotated-client");
+    }
+
+    @Test
+    void keepTokensOfSameOAuthClient() throws Exception {
+        httpClient = client(account(null, "tenant-client"));
+        httpClient.warmUp();
+        awaitTokenRequests(1);
+
+        // Same OAuth client and app key, with another API header
+        httpClient.update(new AirshipAccount(domain(), "/api/create-and-send", "vnd.other+json", null, "app-key",
+                oauth("tenant-client")));
+        httpClient.send(PAYLOAD);
+
+        assertThat(tokenRequests).containsExactly("tenant-client");
+    }
+
+    private AirshipHttpClient client(AirshipAccount account) {
+        return new AirshipHttpClient(account, null, true, TIMEOUT, TIMEOUT, null, new AirshipMetrics(new SimpleMeterRegistry()));
+    }
+
+    private AirshipAccount account(String accessToken, String oauthClientId) {
+        return new AirshipAccount(domain(), "/api/create-and-send", "vnd.urbanairship+json", accessToken, "app-key",
+                oauthClientId == null ? null : oauth(oauthClientId));
+    }
+
+    private AirshipAccount.OAuth oauth(String clientId) {
+        return new AirshipAccount.OAuth(clientId, "secret", domain() + "/token", null);
+    }
+
+    private String domain() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private void awaitTokenRequests(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (tokenRequests.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(tokenRequests).hasSize(count);
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        // The client credentials are sent with basic authentication
+        String credentials = new String(Base64.getDecoder().decode(
+                exchange.getRequestHeaders().getFirst("Authorization").substring("Basic ".length())), StandardCharsets.UTF_8);
+        String clientId = credentials.substring(0, credentials.indexOf(':'));
+        tokenRequests.add(clientId);
+        respond(exchange, 200, "{\"access_token\":\"" + clientId + "-token\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+    }
+
+    private void send(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        respond(exchange, 202, "{\"ok\":true}");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+}
@@ -0,0 +1,59 @@
+package com.cloudiam.keycloak.airship;
+
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.testcontainers.Testcontainers;
+import org.testcontainers.containers.GenericContainer;
+
+/**
+ * Keycloak container with the provider, sending its emails to an {@link AirshipStub} of the test JVM.
+ * <p>
+ * Containers are meant to be started once per test class, so tests create their own users and reset the stub.
+ */
+final class AirshipKeycloakContainers {
+
+    static final String IMAGE = "quay.io/keycloak/keycloak:26.3.4";
+    static final String ACCESS_TOKEN = "test-token";
+    static final String APP_KEY = "test-app-key";
+    static final String AIRSHIP_HEADER = "vnd.urbanairship+json";
+    static final String DEFAULT_SENDER = "noreply@example.com";
+    static final String DEFAULT_SENDER_NAME = "John Doe";
+    static final String DEFAULT_REPLY_TO = "John Doe <noreply@example.com>";
+
+    private AirshipKeycloakContainers() {
+    }
+
+    /**
+     * Creates a container sending to the given stub, further configured by the caller.
+     */
+    static KeycloakContainer create(AirshipStub airship) {
+        // The stub listens on the host, which containers reach through a Testcontainers proxy
+        Testcontainers.exposeHostPorts(airship.getPort());
+        return new KeycloakContainer(IMAGE)
+                .withEnv("KC_LOG_LEVEL", "INFO,com.cloudiam:DEBUG")
+                .withEnv("KC_METRICS_ENABLED", "true")
+                .withEnv("AIRSHIP_DOMAIN", "http://" + GenericContainer.INTERNAL_HOST_HOSTNAME + ":" + airship.getPort())
+                .withEnv("AIRSHIP_ENDPOINT", AirshipStub.ENDPOINT)
+                .withEnv("AIRSHIP_ACCESS_TOKEN", ACCESS_TOKEN)
+                .withEnv("AIRSHIP_APP_KEY", APP_KEY)
+                .withEnv("AIRSHIP_HEADER", AIRSHIP_HEADER)
+                .withEnv("AIRSHIP_EMAIL_SENDER", DEFAULT_SENDER)
+                .withEnv("AIRSHIP_EMAIL_SENDER_NAME", DEFAULT_SENDER_NAME)
+                .withEnv("AIRSHIP_EMAIL_REPLY_TO", DEFAULT_REPLY_TO)
+                .withDefaultProviderClasses();
+    }
+
+    /**
+     * Creates a realm where users can reset their password from the login page.
+     */
+    static RealmResource createRealm(Keycloak adminClient, String name) {
+        var realm = new RealmRepresentation();
+        realm.setRealm(name);
+        realm.setEnabled(true);
+        realm.setResetPasswordAllowed(true);
+        adminClient.realms().create(realm);
+        return adminClient.realm(name);
+    }
+}
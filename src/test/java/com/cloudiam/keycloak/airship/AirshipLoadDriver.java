@@ -0,0 +1,257 @@
+package com.cloudiam.keycloak.airship;
+
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import org.keycloak.admin.client.CreatedResponseUtil;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fires Keycloak flows that send emails, concurrently, and reports their throughput and latency percentiles.
+ * <p>
+ * Flows are timed from the client, which includes the Airship call when the provider sends synchronously. The provider
+ * side is measured from the {@code airship_email_send_seconds} histogram of the Keycloak metrics endpoint, and the
+ * Airship side from the requests received by the stub.
+ */
+class AirshipLoadDriver {
+
+    private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*action=\"([^\"]+)\"");
+    private static final Pattern SEND_BUCKET = Pattern.compile("^airship_email_send_seconds_bucket\\{.*le=\"([^\"]+)\".*}\\s+(\\S+)$");
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    enum Flow {
+        /**
+         * Verification email sent by an administrator.
+         */
+        VERIFY_EMAIL,
+        /**
+         * Password reset requested by the user from the login page.
+         */
+        RESET_PASSWORD
+    }
+
+    record Latencies(int succeeded, int failures, double[] percentileMillis, double maxMillis) {
+
+        static Latencies of(List<Long> nanos, int failures) {
+            long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+            double[] percentiles = new double[PERCENTILES.length];
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                percentiles[i] = sorted.length == 0 ? 0 : sorted[(int) Math.ceil(PERCENTILES[i] * sorted.length) - 1] / 1e6;
+            }
+            return new Latencies(sorted.length, failures, percentiles, sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "succeeded=%d failures=%d p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+                    succeeded, failures, percentileMillis[0], percentileMillis[1], percentileMillis[2], maxMillis);
+        }
+    }
+
+    /**
+     * @param providerPercentileSeconds upper bounds of the histogram buckets holding the provider send percentiles
+     */
+    record Report(String scenario, int flows, Duration elapsed, Map<Flow, Latencies> latencies, int airshipRequests,
+                  int providerSends, double[] providerPercentileSeconds) {
+
+        int failures() {
+            return latencies.values().stream().mapToInt(Latencies::failures).sum();
+        }
+
+        double flowsPerSecond() {
+            return flows / (elapsed.toNanos() / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            var report = new StringBuilder(String.format(Locale.ROOT, "%s: %d flows in %.1fs, %.1f flows/s, %d failures%n",
+                    scenario, flows, elapsed.toMillis() / 1000.0, flowsPerSecond(), failures()));
+            latencies.forEach((flow, flowLatencies) -> report.append(String.format(Locale.ROOT, "  %-14s %s%n", flow, flowLatencies)));
+            report.append(String.format(Locale.ROOT, "  %-14s requests=%d, %.1f requests/s%n",
+                    "airship", airshipRequests, airshipRequests / (elapsed.toNanos() / 1e9)));
+            report.append(String.format(Locale.ROOT, "  %-14s sends=%d p50<=%.3fs p95<=%.3fs p99<=%.3fs",
+                    "provider", providerSends, providerPercentileSeconds[0], providerPercentileSeconds[1], providerPercentileSeconds[2]));
+            return report.toString();
+        }
+    }
+
+    private final KeycloakContainer keycloak;
+    private final Keycloak adminClient;
+    private final String realm;
+    private final AirshipStub airship;
+    private final HttpClient httpClient;
+
+    AirshipLoadDriver(KeycloakContainer keycloak, Keycloak adminClient, String realm, AirshipStub airship) {
+        this.keycloak = keycloak;
+        this.adminClient = adminClient;
+        this.realm = realm;
+        this.airship = airship;
+        this.httpClient = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+    }
+
+    /**
+     * Creates users with an email, returning their ids and usernames.
+     */
+    Map<String, String> createUsers(int count) {
+        Map<String, String> users = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            var user = new UserRepresentation();
+            user.setUsername("load-" + i);
+            user.setEmail("load-" + i + "@example.com");
+            user.setEnabled(true);
+            String userId = CreatedResponseUtil.getCreatedId(adminClient.realm(realm).users().create(user));
+            users.put(userId, user.getUsername());
+        }
+        return users;
+    }
+
+    /**
+     * Runs the given number of flows, alternating between the given ones and the users, at most {@code concurrency}
+     * at a time.
+     */
+    Report run(String scenario, Map<String, String> users, List<Flow> flows, int count, int concurrency) throws IOException, InterruptedException {
+        airship.clearRequests();
+        Map<Double, Double> sendBuckets = scrapeSendBuckets();
+        List<Map.Entry<String, String>> userList = new ArrayList<>(users.entrySet());
+        Map<Flow, ConcurrentLinkedQueue<Long>> latencies = new ConcurrentHashMap<>();
+        Map<Flow, AtomicInteger> failures = new ConcurrentHashMap<>();
+        flows.forEach(flow -> {
+            latencies.put(flow, new ConcurrentLinkedQueue<>());
+            failures.put(flow, new AtomicInteger());
+        });
+
+        var permits = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < count; i++) {
+                Flow flow = flows.get(i % flows.size());
+                Map.Entry<String, String> user = userList.get(i % userList.size());
+                permits.acquire();
+                executor.execute(() -> {
+                    long flowStart = System.nanoTime();
+                    try {
+                        if (run(flow, user.getKey(), user.getValue())) {
+                            latencies.get(flow).add(System.nanoTime() - flowStart);
+                        } else {
+                            failures.get(flow).incrementAndGet();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        failures.get(flow).incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+        var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        Map<Flow, Latencies> report = new EnumMap<>(Flow.class);
+        flows.forEach(flow -> report.put(flow, Latencies.of(List.copyOf(latencies.get(flow)), failures.get(flow).get())));
+        Map<Double, Double> sendBucketsAfter = scrapeSendBuckets();
+        sendBucketsAfter.replaceAll((bound, sends) -> sends - sendBuckets.getOrDefault(bound, 0.0));
+        double providerSends = sendBucketsAfter.getOrDefault(Double.POSITIVE_INFINITY, 0.0);
+        double[] providerPercentiles = Arrays.stream(PERCENTILES).map(percentile -> bucketBound(sendBucketsAfter, percentile)).toArray();
+        return new Report(scenario, count, elapsed, report, airship.getRequests().size(), (int) providerSends, providerPercentiles);
+    }
+
+    private boolean run(Flow flow, String userId, String username) throws IOException, InterruptedException {
+        return switch (flow) {
+            case VERIFY_EMAIL -> sendVerifyEmail(userId);
+            case RESET_PASSWORD -> resetPassword(username);
+        };
+    }
+
+    private boolean sendVerifyEmail(String userId) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(keycloak.getAuthServerUrl() + "/admin/realms/" + realm + "/users/" + userId + "/send-verify-email"))
+                .header("Authorization", "Bearer " + adminClient.tokenManager().getAccessTokenString())
+                .PUT(HttpRequest.BodyPublishers.noBody())
+                .build();
+        return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 204;
+    }
+
+    /**
+     * Opens the forgot password page, then submits the username, as a browser would.
+     */
+    private boolean resetPassword(String username) throws IOException, InterruptedException {
+        // Each flow is a separate browser, with its own authentication session cookies
+        var browser = HttpClient.newBuilder()
+                .cookieHandler(new CookieManager())
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        try (browser) {
+            HttpRequest page = HttpRequest.newBuilder(URI.create(keycloak.getAuthServerUrl() + "/realms/" + realm + "/login-actions/reset-credentials?client_id=account-console"))
+                    .GET()
+                    .build();
+            HttpResponse<String> form = browser.send(page, HttpResponse.BodyHandlers.ofString());
+            Matcher action = FORM_ACTION.matcher(form.body());
+            if (form.statusCode() != 200 || !action.find()) {
+                return false;
+            }
+            HttpRequest submit = HttpRequest.newBuilder(URI.create(action.group(1).replace("&amp;", "&")))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("username=" + URLEncoder.encode(username, StandardCharsets.UTF_8)))
+                    .build();
+            // Keycloak answers with an error page when the email could not be sent
+            return browser.send(submit, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+        }
+    }
+
+    /**
+     * @return the cumulative number of provider sends by histogram bucket upper bound, in seconds
+     */
+    private Map<Double, Double> scrapeSendBuckets() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(keycloak.getMgmtServerUrl() + "/metrics"))
+                .timeout(Duration.ofSeconds(10))
+                .GET()
+                .build();
+        Map<Double, Double> buckets = new TreeMap<>();
+        httpClient.send(request, HttpResponse.BodyHandlers.ofString()).body().lines().forEach(line -> {
+            // Buckets of the success and failure outcomes are added up
+            Matcher bucket = SEND_BUCKET.matcher(line);
+            if (bucket.matches()) {
+                double bound = bucket.group(1).equals("+Inf") ? Double.POSITIVE_INFINITY : Double.parseDouble(bucket.group(1));
+                buckets.merge(bound, Double.parseDouble(bucket.group(2)), Double::sum);
+            }
+        });
+        return buckets;
+    }
+
+    private static double bucketBound(Map<Double, Double> cumulativeBuckets, double percentile) {
+        double total = cumulativeBuckets.getOrDefault(Double.POSITIVE_INFINITY, 0.0);
+        for (Map.Entry<Double, Double> bucket : cumulativeBuckets.entrySet()) {
+            if (total > 0 && bucket.getValue() >= percentile * total) {
+                return bucket.getKey();
+            }
+        }
+        return 0;
+    }
+}
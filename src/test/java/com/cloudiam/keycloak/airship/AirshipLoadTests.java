@@ -0,0 +1,117 @@
+package com.cloudiam.keycloak.airship;
+
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.keycloak.admin.client.Keycloak;
+import org.slf4j.Logger;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Load scenarios of the provider against the Airship stub, run with {@code mvn -Pload test}.
+ * <p>
+ * The number of flows and their concurrency are set with the {@code airship.load.flows} and
+ * {@code airship.load.concurrency} system properties. Reports are logged, and only sanity checked.
+ */
+@Tag("load")
+@Testcontainers
+class AirshipLoadTests {
+    private static final Logger LOGGER = getLogger(AirshipLoadTests.class);
+
+    private static final String REALM = "airship-load";
+    private static final int USERS = 50;
+    private static final int FLOWS = Integer.getInteger("airship.load.flows", 1000);
+    private static final int CONCURRENCY = Integer.getInteger("airship.load.concurrency", 32);
+    private static final List<AirshipLoadDriver.Flow> ALL_FLOWS = List.of(AirshipLoadDriver.Flow.VERIFY_EMAIL, AirshipLoadDriver.Flow.RESET_PASSWORD);
+    private static final Duration AIRSHIP_LATENCY = Duration.ofMillis(50);
+
+    private static final AirshipStub AIRSHIP = AirshipStub.start();
+
+    @Container
+    private static final KeycloakContainer KEYCLOAK = AirshipKeycloakContainers.create(AIRSHIP)
+            .withEnv("KC_LOG_LEVEL", "INFO");
+
+    static AirshipLoadDriver driver;
+    static Map<String, String> users;
+
+    @BeforeAll
+    static void setUpDriver() throws Exception {
+        Keycloak adminClient = KEYCLOAK.getKeycloakAdminClient();
+        AirshipKeycloakContainers.createRealm(adminClient, REALM);
+        driver = new AirshipLoadDriver(KEYCLOAK, adminClient, REALM, AIRSHIP);
+        users = driver.createUsers(USERS);
+
+        // Warms up Keycloak, the provider and the connections to the stub
+        driver.run("warm-up", users, ALL_FLOWS, USERS, CONCURRENCY);
+    }
+
+    @AfterAll
+    static void tearDownAirship() {
+        AIRSHIP.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        AIRSHIP.reset();
+    }
+
+    @Test
+    void steadyAirship() throws Exception {
+        AIRSHIP.setDefault(AirshipStub.Behavior.accepted().withLatency(AIRSHIP_LATENCY));
+
+        AirshipLoadDriver.Report report = run("steady");
+
+        assertThat(report.failures()).isZero();
+        assertThat(report.airshipRequests()).isEqualTo(FLOWS);
+    }
+
+    @Test
+    void slowAirship() throws Exception {
+        AIRSHIP.setDefault(AirshipStub.Behavior.accepted().withLatency(Duration.ofMillis(500)));
+
+        AirshipLoadDriver.Report report = run("slow");
+
+        // The concurrency limit may reject some sends, but must not stop sending
+        assertThat(report.providerSends()).isPositive();
+    }
+
+    @Test
+    void throttlingAirship() throws Exception {
+        AIRSHIP.setDefault(AirshipStub.Behavior.accepted().withLatency(AIRSHIP_LATENCY));
+        AIRSHIP.addFault(AirshipStub.Behavior.tooManyRequests(Duration.ZERO), 0.1);
+
+        AirshipLoadDriver.Report report = run("throttling");
+
+        // Throttled sends are retried, so more calls than flows reach Airship
+        assertThat(report.airshipRequests()).isGreaterThan(FLOWS);
+    }
+
+    @Test
+    void failingAirship() throws Exception {
+        AIRSHIP.setDefault(AirshipStub.Behavior.accepted().withLatency(AIRSHIP_LATENCY));
+        AIRSHIP.addFault(AirshipStub.Behavior.status(503).withLatency(AIRSHIP_LATENCY), 0.05);
+        AIRSHIP.addFault(AirshipStub.Behavior.status(500).withLatency(AIRSHIP_LATENCY), 0.02);
+        AIRSHIP.addFault(AirshipStub.Behavior.dropConnection(), 0.02);
+
+        AirshipLoadDriver.Report report = run("failing");
+
+        assertThat(report.failures()).isLessThan(FLOWS);
+    }
+
+    private static AirshipLoadDriver.Report run(String scenario) throws Exception {
+        AirshipLoadDriver.Report report = driver.run(scenario, users, ALL_FLOWS, FLOWS, CONCURRENCY);
+        LOGGER.info("{}", report);
+        return report;
+    }
+}
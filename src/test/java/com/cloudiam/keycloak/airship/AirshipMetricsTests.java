@@ -0,0 +1,83 @@
+package com.cloudiam.keycloak.airship;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AirshipMetricsTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AirshipMetrics metrics = new AirshipMetrics(registry);
+
+    @Test
+    void recordSendDurationByOutcome() {
+        metrics.recordSend(Duration.ofMillis(30).toNanos(), true);
+        metrics.recordSend(Duration.ofMillis(10).toNanos(), true);
+        metrics.recordSend(Duration.ofMillis(500).toNanos(), false);
+
+        var succeeded = registry.get("airship.email.send").tag("outcome", "success").timer();
+        assertThat(succeeded.count()).isEqualTo(2);
+        assertThat(succeeded.totalTime(TimeUnit.MILLISECONDS)).isEqualTo(40);
+        assertThat(registry.get("airship.email.send").tag("outcome", "failure").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void recordPayloadAndResponseHeadersPhases() {
+        metrics.recordPayload(Duration.ofMillis(2).toNanos(), 2048);
+        metrics.recordResponseHeaders(Duration.ofMillis(80).toNanos());
+
+        assertThat(registry.get("airship.email.phase").tag("phase", "payload").timer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(2);
+        assertThat(registry.get("airship.email.phase").tag("phase", "response_headers").timer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(80);
+        assertThat(registry.get("airship.email.payload.size").summary().totalAmount()).isEqualTo(2048);
+    }
+
+    @Test
+    void countResponsesByStatusClass() {
+        metrics.recordResponse(202);
+        metrics.recordResponse(429);
+        metrics.recordResponse(503);
+        metrics.recordResponse(500);
+
+        assertThat(registry.get("airship.email.responses").tag("status", "2xx").counter().count()).isEqualTo(1);
+        assertThat(registry.get("airship.email.responses").tag("status", "4xx").counter().count()).isEqualTo(1);
+        assertThat(registry.get("airship.email.responses").tag("status", "5xx").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void countErrorsByException() {
+        metrics.recordError(new HttpTimeoutException("request timed out"));
+        metrics.recordError(new HttpTimeoutException("request timed out"));
+        metrics.recordError(new IOException("connection reset"));
+
+        assertThat(registry.get("airship.email.errors").counters()).hasSize(2);
+        assertThat(registry.get("airship.email.errors").tag("exception", "HttpTimeoutException").counter().count()).isEqualTo(2);
+        assertThat(registry.get("airship.email.errors").tag("exception", "IOException").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void tagGaugesWithBulkhead() {
+        List<String> queued = List.of("jane@example.com", "john@example.com");
+
+        metrics.gauge("queue.size", "Emails waiting in the Airship send queue", "tenant", queued, List::size);
+
+        assertThat(registry.get("airship.email.queue.size").tag("bulkhead", "tenant").gauge().value()).isEqualTo(2);
+    }
+
+    @Test
+    void registerRejectedCallsAsCounters() {
+        var rejected = new AtomicLong(3);
+
+        metrics.counter("rate_limit.rejected", "Airship calls rejected by the cluster rate limit", "tenant", rejected, AtomicLong::get);
+        rejected.incrementAndGet();
+
+        assertThat(registry.get("airship.email.rate_limit.rejected").tag("bulkhead", "tenant").functionCounter().count()).isEqualTo(4);
+    }
+}
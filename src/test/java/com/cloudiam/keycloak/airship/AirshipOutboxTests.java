@@ -0,0 +1,89 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AirshipOutboxTests {
+
+    private static final Duration FSYNC_INTERVAL = Duration.ofMillis(50);
+    private static final Duration COMPACTION_INTERVAL = Duration.ofMinutes(10);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoverUnacknowledgedEmails() throws IOException {
+        try (var outbox = new AirshipOutbox(directory, FSYNC_INTERVAL, COMPACTION_INTERVAL)) {
+            long sent = outbox.append(payload("{\"sent\":true}"));
+            outbox.append(payload("{\"sent\":false}"));
+            outbox.ack(sent);
+        }
+
+        try (var outbox = new AirshipOutbox(directory, FSYNC_INTERVAL, COMPACTION_INTERVAL)) {
+            assertThat(outbox.recovered())
+                    .singleElement()
+                    .satisfies(entry -> assertThat(entry.getValue().asString()).isEqualTo("{\"sent\":false}"));
+        }
+    }
+
+    @Test
+    void acknowledgeRecoveredEmails() throws IOException {
+        try (var outbox = new AirshipOutbox(directory, FSYNC_INTERVAL, COMPACTION_INTERVAL)) {
+            outbox.append(payload("{}"));
+        }
+        try (var outbox = new AirshipOutbox(directory, FSYNC_INTERVAL, COMPACTION_INTERVAL)) {
+            outbox.ack(outbox.recovered().get(0).getKey());
+            long next = outbox.append(payload("{\"next\":true}"));
+            assertThat(next).isGreaterThan(outbox.recovered().get(0).getKey());
+            outbox.ack(next);
+        }
+
+        try (var outbox = new AirshipOutbox(directory, FSYNC_INTERVAL, COMPACTION_INTERVAL)) {
+            assertThat(outbox.recovered()).isEmpty();
+            assertThat(outbox.size()).isZero();
+        }
+    }
+
+    @Test
+    void replayReleasedEmailsOnce() throws IOException {
+        try (var outbox = new AirshipOutbox(directory, FSYNC_INTERVAL, COMPACTION_INTERVAL)) {
+            long failed = outbox.append(payload("{\"failed\":true}"));
+            long inFlight = outbox.append(payload("{\"failed\":false}"));
+
+            outbox.release(failed);
+
+            assertThat(outbox.takeReleased()).singleElement().satisfies(entry -> assertThat(entry.getKey()).isEqualTo(failed));
+            assertThat(outbox.takeReleased()).isEmpty();
+            assertThat(outbox.size()).isEqualTo(2);
+
+            outbox.ack(inFlight);
+            outbox.release(inFlight);
+            assertThat(outbox.takeReleased()).isEmpty();
+        }
+    }
+
+    @Test
+    void releaseRecoveredEmails() throws IOException {
+        try (var outbox = new AirshipOutbox(directory, FSYNC_INTERVAL, COMPACTION_INTERVAL)) {
+            outbox.append(payload("{}"));
+        }
+
+        try (var outbox = new AirshipOutbox(directory, FSYNC_INTERVAL, COMPACTION_INTERVAL)) {
+            assertThat(outbox.takeReleased())
+                    .singleElement()
+                    .satisfies(entry -> assertThat(entry.getValue().asString()).isEqualTo("{}"));
+        }
+    }
+
+    private static AirshipPayload payload(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return new AirshipPayload(bytes, bytes.length);
+    }
+}
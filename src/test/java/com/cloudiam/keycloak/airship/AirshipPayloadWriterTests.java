@@ -0,0 +1,84 @@
+package com.cloudiam.keycloak.airship;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AirshipPayloadWriterTests {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final AirshipPayloadWriter PAYLOAD_WRITER = new AirshipPayloadWriter(new AirshipSender("noreply@example.com", "Example", null));
+
+    @Test
+    void writeRenderedEmail() throws IOException {
+        JsonNode payload = read(PAYLOAD_WRITER.write(new AirshipEmailMessage("jane@example.com", "Verify email", "Text", "<p>Html</p>")));
+
+        assertThat(payload.at("/audience/create_and_send/0/ua_address").asText()).isEqualTo("jane@example.com");
+        assertThat(payload.at("/notification/email/subject").asText()).isEqualTo("Verify email");
+        assertThat(payload.at("/notification/email/html_body").asText()).isEqualTo("<p>Html</p>");
+        assertThat(payload.at("/notification/email/plaintext_body").asText()).isEqualTo("Text");
+        assertThat(payload.at("/notification/email/reply_to").isNull()).isTrue();
+    }
+
+    @Test
+    void writeEnvelopeWithEscapedSender() throws IOException {
+        var payloadWriter = new AirshipPayloadWriter(new AirshipSender("noreply@example.com", "The \"Example\" Team", "Support <support@example.com>"));
+
+        JsonNode payload = read(payloadWriter.write(new AirshipEmailMessage("jane@example.com", "Verify email", "Text", null)));
+
+        assertThat(payload.at("/device_types/0").asText()).isEqualTo("email");
+        assertThat(payload.at("/campaigns/categories/0").asText()).isEqualTo("keycloak");
+        assertThat(payload.at("/notification/email/sender_name").asText()).isEqualTo("The \"Example\" Team");
+        assertThat(payload.at("/notification/email/sender_address").asText()).isEqualTo("noreply@example.com");
+        assertThat(payload.at("/notification/email/reply_to").asText()).isEqualTo("Support <support@example.com>");
+        assertThat(payload.at("/notification/email/message_type").asText()).isEqualTo("transactional");
+        assertThat(payload.at("/notification/email/bypass_opt_in_level").asBoolean()).isTrue();
+        assertThat(payload.at("/notification/email/click_tracking").asBoolean()).isFalse();
+        assertThat(payload.at("/notification/email/open_tracking").asBoolean()).isFalse();
+        assertThat(payload.at("/notification/email").has("html_body")).isFalse();
+    }
+
+    @Test
+    void reuseBuffersWithoutLeakingPreviousPayloads() throws IOException {
+        PAYLOAD_WRITER.write(new AirshipEmailMessage("jane@example.com", "Large", "Text", "<p>" + "x".repeat(100_000) + "</p>"));
+
+        AirshipPayload payload = PAYLOAD_WRITER.write(new AirshipEmailMessage("john@example.com", "Small", "Text", "<p>Html</p>"));
+
+        assertThat(payload.bytes()).hasSize(payload.length());
+        assertThat(read(payload).at("/notification/email/html_body").asText()).isEqualTo("<p>Html</p>");
+    }
+
+    @Test
+    void writeTemplateWithSubstitutionsPerRecipient() throws IOException {
+        JsonNode payload = read(PAYLOAD_WRITER.write(List.of(
+                AirshipEmailMessage.ofTemplate("jane@example.com", "tpl-1", Map.of("link", "https://example.com/1")),
+                AirshipEmailMessage.ofTemplate("john@example.com", "tpl-1", Map.of("link", "https://example.com/2")))));
+
+        assertThat(payload.at("/audience/create_and_send/1/ua_address").asText()).isEqualTo("john@example.com");
+        assertThat(payload.at("/audience/create_and_send/1/link").asText()).isEqualTo("https://example.com/2");
+        assertThat(payload.at("/notification/email/template/template_id").asText()).isEqualTo("tpl-1");
+        assertThat(payload.at("/notification/email").has("subject")).isFalse();
+        assertThat(payload.at("/notification/email").has("html_body")).isFalse();
+    }
+
+    @Test
+    void leaveOutReservedSubstitutions() throws IOException {
+        JsonNode payload = read(PAYLOAD_WRITER.write(AirshipEmailMessage.ofTemplate("jane@example.com", "tpl-1",
+                Map.of("link", "https://example.com/1", "ua_address", "mallory@example.com", "UA_Commercial_Opted_In", "2024-01-01"))));
+
+        JsonNode recipient = payload.at("/audience/create_and_send/0");
+        assertThat(recipient.at("/ua_address").asText()).isEqualTo("jane@example.com");
+        assertThat(recipient.at("/link").asText()).isEqualTo("https://example.com/1");
+        assertThat(recipient.size()).isEqualTo(2);
+    }
+
+    private static JsonNode read(AirshipPayload payload) throws IOException {
+        return MAPPER.readTree(payload.bytes(), 0, payload.length());
+    }
+}
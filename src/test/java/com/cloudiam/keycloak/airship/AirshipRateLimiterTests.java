@@ -0,0 +1,144 @@
+package com.cloudiam.keycloak.airship;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AirshipRateLimiterTests {
+
+    private static final String CACHE_NAME = "work";
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    // Two nodes of an in-JVM cluster, sharing a replicated cache like the Keycloak work cache
+    private static DefaultCacheManager manager1;
+    private static DefaultCacheManager manager2;
+    private static Cache<String, String> cache1;
+    private static Cache<String, String> cache2;
+
+    @BeforeAll
+    static void startCluster() throws InterruptedException {
+        manager1 = cacheManager("node-1");
+        manager2 = cacheManager("node-2");
+        cache1 = manager1.getCache(CACHE_NAME);
+        cache2 = manager2.getCache(CACHE_NAME);
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while ((manager1.getMembers().size() < 2 || manager2.getMembers().size() < 2) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(manager1.getMembers()).hasSize(2);
+    }
+
+    @AfterAll
+    static void stopCluster() {
+        manager2.stop();
+        manager1.stop();
+    }
+
+    @AfterEach
+    void clearCache() {
+        cache1.clear();
+    }
+
+    @Test
+    void shareRateAcrossNodes() throws EmailException {
+        var node1 = node(cache1, 10, 10, 5, Duration.ofMinutes(1), Duration.ZERO);
+        var node2 = node(cache2, 10, 10, 5, Duration.ofMinutes(1), Duration.ZERO);
+        for (int i = 0; i < 5; i++) {
+            node1.acquire();
+            node2.acquire();
+        }
+
+        assertThatThrownBy(node1::acquire).isInstanceOf(EmailException.class);
+        assertThatThrownBy(node2::acquire).isInstanceOf(EmailException.class);
+        assertThat(node1.getRejected()).isEqualTo(1);
+    }
+
+    @Test
+    void leaseTokensInBatches() throws EmailException {
+        var node = node(cache1, 10, 10, 5, Duration.ofMinutes(1), Duration.ZERO);
+        node.acquire();
+
+        // Replicated to the other node
+        assertThat(cache2.get(AirshipRateLimiter.BUCKET_KEY + ":app-key")).startsWith("5000:");
+    }
+
+    @Test
+    void waitForRefill() throws EmailException {
+        var node = node(cache1, 100, 1, 1, Duration.ofMinutes(1), Duration.ofSeconds(1));
+        long start = System.nanoTime();
+        node.acquire();
+        node.acquire();
+
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isGreaterThanOrEqualTo(Duration.ofMillis(5));
+    }
+
+    @Test
+    void putBackUnspentTokensOfExpiredLeases() throws Exception {
+        var node = node(cache1, 1, 10, 5, Duration.ofMillis(20), Duration.ZERO);
+        node.acquire();
+        Thread.sleep(30);
+
+        // The 4 unspent tokens are put back before leasing 5 more
+        node.acquire();
+        assertThat(bucketTokens()).isBetween(4000L, 4999L);
+    }
+
+    @Test
+    void putBackUnspentTokensOnClose() throws EmailException {
+        var node = node(cache1, 1, 10, 5, Duration.ofMinutes(1), Duration.ZERO);
+        var otherNode = node(cache2, 1, 10, 5, Duration.ofMinutes(1), Duration.ZERO);
+        node.acquire();
+        otherNode.acquire();
+
+        node.close();
+
+        assertThat(bucketTokens()).isBetween(4000L, 4999L);
+    }
+
+    @Test
+    void limitEachAppKeySeparately() throws EmailException {
+        var node = node(cache1, 10, 1, 1, Duration.ofMinutes(1), Duration.ZERO);
+        var otherProject = new AirshipRateLimiter("other-app-key", 10, 1, 1, Duration.ofMinutes(1), Duration.ZERO);
+        otherProject.bind(cache2);
+        node.acquire();
+
+        otherProject.acquire();
+        assertThatThrownBy(node::acquire).isInstanceOf(EmailException.class);
+    }
+
+    private static long bucketTokens() {
+        String bucket = cache2.get(AirshipRateLimiter.BUCKET_KEY + ":app-key");
+        return Long.parseLong(bucket.substring(0, bucket.indexOf(':')));
+    }
+
+    private static AirshipRateLimiter node(Cache<String, String> cache, int ratePerSecond, int burst, int leaseSize, Duration lease,
+                                           Duration maxWait) {
+        var rateLimiter = new AirshipRateLimiter("app-key", ratePerSecond, burst, leaseSize, lease, maxWait);
+        rateLimiter.bind(cache);
+        return rateLimiter;
+    }
+
+    private static DefaultCacheManager cacheManager(String nodeName) {
+        GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+        global.transport()
+                .clusterName("airship-rate-limit")
+                .nodeName(nodeName)
+                .addProperty(JGroupsTransport.CONFIGURATION_FILE, "airship-jgroups-loopback.xml");
+        var manager = new DefaultCacheManager(global.build());
+        manager.defineConfiguration(CACHE_NAME, new ConfigurationBuilder().clustering().cacheMode(CacheMode.REPL_SYNC).build());
+        return manager;
+    }
+}
@@ -0,0 +1,79 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AirshipRetryPolicyTests {
+
+    private static final Duration BASE_DELAY = Duration.ofMillis(100);
+    private static final Duration MAX_DELAY = Duration.ofMillis(400);
+    private static final Duration DEADLINE = Duration.ofSeconds(10);
+
+    @Test
+    void retryRateLimitedSendsWithCappedJitter() {
+        var policy = new AirshipRetryPolicy(5, BASE_DELAY, MAX_DELAY, DEADLINE, false, 1, 100);
+        var failure = new AirshipApiException(429, "Too Many Requests");
+
+        assertThat(policy.nextDelay(1, failure, System.nanoTime())).isBetween(Duration.ZERO, BASE_DELAY);
+        assertThat(policy.nextDelay(4, failure, System.nanoTime())).isBetween(Duration.ZERO, MAX_DELAY);
+        assertThat(policy.nextDelay(5, failure, System.nanoTime())).isNull();
+    }
+
+    @Test
+    void honourRetryAfter() {
+        var policy = new AirshipRetryPolicy(3, BASE_DELAY, MAX_DELAY, DEADLINE, false, 1, 100);
+        var failure = new AirshipApiException(503, "Service Unavailable", AirshipRetryPolicy.parseRetryAfter("2"));
+
+        assertThat(policy.nextDelay(1, failure, System.nanoTime())).isEqualTo(Duration.ofSeconds(2));
+    }
+
+    @Test
+    void stopAtDeadline() {
+        var policy = new AirshipRetryPolicy(3, BASE_DELAY, MAX_DELAY, Duration.ofSeconds(1), false, 1, 100);
+        var failure = new AirshipApiException(503, "Service Unavailable", Duration.ofSeconds(5));
+
+        assertThat(policy.nextDelay(1, failure, System.nanoTime())).isNull();
+    }
+
+    @Test
+    void onlyRetrySafeFailuresByDefault() {
+        var policy = new AirshipRetryPolicy(3, BASE_DELAY, MAX_DELAY, DEADLINE, false, 1, 100);
+
+        assertThat(policy.isRetryable(new EmailException("refused", new ConnectException()))).isTrue();
+        assertThat(policy.isRetryable(new EmailException("reset", new IOException("Connection reset")))).isFalse();
+        assertThat(policy.isRetryable(new AirshipApiException(502, "Bad Gateway"))).isFalse();
+        assertThat(policy.isRetryable(new AirshipApiException(400, "Bad Request"))).isFalse();
+
+        var unsafePolicy = new AirshipRetryPolicy(3, BASE_DELAY, MAX_DELAY, DEADLINE, true, 1, 100);
+        assertThat(unsafePolicy.isRetryable(new AirshipApiException(502, "Bad Gateway"))).isTrue();
+        assertThat(unsafePolicy.isRetryable(new AirshipApiException(400, "Bad Request"))).isFalse();
+    }
+
+    @Test
+    void replayRejectedCallsAndSafeFailures() {
+        var policy = new AirshipRetryPolicy(3, BASE_DELAY, MAX_DELAY, DEADLINE, false, 1, 100);
+
+        assertThat(policy.isReplayable(new AirshipCircuitOpenException())).isTrue();
+        assertThat(policy.isReplayable(new AirshipRejectedException("Airship rate limit reached, email not sent"))).isTrue();
+        assertThat(policy.isReplayable(new AirshipApiException(503, "Service Unavailable"))).isTrue();
+        assertThat(policy.isReplayable(new EmailException("reset", new IOException("Connection reset")))).isFalse();
+        assertThat(policy.isReplayable(new AirshipApiException(504, "Gateway Timeout"))).isFalse();
+    }
+
+    @Test
+    void limitRetriesToBudget() {
+        var policy = new AirshipRetryPolicy(3, BASE_DELAY, MAX_DELAY, DEADLINE, false, 0.5, 0);
+        var failure = new AirshipApiException(429, "Too Many Requests");
+
+        policy.onSend();
+        policy.onSend();
+        assertThat(policy.nextDelay(1, failure, System.nanoTime())).isNotNull();
+        assertThat(policy.nextDelay(1, failure, System.nanoTime())).isNull();
+    }
+}
@@ -0,0 +1,178 @@
+package com.cloudiam.keycloak.airship;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AirshipSendQueueTests {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final AirshipEmailMessage VERIFY = new AirshipEmailMessage("jane@example.com", "Verify email", "Link: 1", "<a>1</a>");
+
+    private final KeycloakSession session = mock(KeycloakSession.class);
+    private final KeycloakTransactionManager transactionManager = mock(KeycloakTransactionManager.class);
+    private final List<KeycloakTransaction> enlisted = new ArrayList<>();
+    private AirshipSendQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        when(session.getTransactionManager()).thenReturn(transactionManager);
+        when(transactionManager.isActive()).thenReturn(true);
+        doAnswer(invocation -> enlisted.add(invocation.getArgument(0))).when(transactionManager).enlistAfterCompletion(any());
+    }
+
+    @AfterEach
+    void tearDown() {
+        queue.close();
+    }
+
+    @Test
+    void enqueueOnCommit() throws Exception {
+        queue = new AirshipSendQueue(10, 1, AirshipSendQueue.Backpressure.BLOCK, TIMEOUT);
+        var delivery = new RecordingDelivery(false);
+
+        queue.submit(session, delivery);
+        assertThat(delivery.accepted).isFalse();
+        assertThat(delivery.delivered.getCount()).isEqualTo(1);
+
+        commit(0);
+        assertThat(delivery.accepted).isTrue();
+        assertThat(delivery.delivered.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)).isTrue();
+    }
+
+    @Test
+    void discardOnRollback() throws Exception {
+        queue = new AirshipSendQueue(1, 0, AirshipSendQueue.Backpressure.REJECT, TIMEOUT);
+        var delivery = new RecordingDelivery(false);
+
+        queue.submit(session, delivery);
+        rollback(0);
+
+        assertThat(delivery.accepted).isFalse();
+        assertThat(delivery.discarded.getCount()).isZero();
+        // The room reserved by the rolled back delivery is given back
+        queue.submit(session, new RecordingDelivery(false));
+    }
+
+    @Test
+    void rejectBeforeCommitWhenFull() throws Exception {
+        queue = new AirshipSendQueue(1, 0, AirshipSendQueue.Backpressure.REJECT, TIMEOUT);
+        var first = new RecordingDelivery(false);
+        var second = new RecordingDelivery(false);
+
+        queue.submit(session, first);
+        assertThatThrownBy(() -> queue.submit(session, second)).isInstanceOf(EmailException.class);
+        commit(0);
+
+        assertThat(enlisted).hasSize(1);
+        assertThat(first.accepted).isTrue();
+        assertThat(second.accepted).isFalse();
+        assertThat(queue.size()).isEqualTo(1);
+    }
+
+    @Test
+    void deliverOnCommittingThreadWhenFull() throws Exception {
+        queue = new AirshipSendQueue(1, 0, AirshipSendQueue.Backpressure.SYNC, TIMEOUT);
+        var first = new RecordingDelivery(false);
+        var second = new RecordingDelivery(false);
+
+        queue.submit(session, first);
+        queue.submit(session, second);
+        commit(0);
+        commit(1);
+
+        assertThat(queue.size()).isEqualTo(1);
+        assertThat(first.deliveredOn).isNull();
+        assertThat(second.accepted).isTrue();
+        assertThat(second.deliveredOn).isSameAs(Thread.currentThread());
+    }
+
+    @Test
+    void deliverOnCommittingThreadOnceClosed() throws Exception {
+        queue = new AirshipSendQueue(10, 1, AirshipSendQueue.Backpressure.BLOCK, TIMEOUT);
+        var delivery = new RecordingDelivery(false);
+
+        queue.submit(session, delivery);
+        queue.close();
+        commit(0);
+
+        assertThat(delivery.accepted).isTrue();
+        assertThat(delivery.deliveredOn).isSameAs(Thread.currentThread());
+        assertThat(queue.size()).isZero();
+    }
+
+    @Test
+    void releaseDuplicateWhenDeliveryFails() throws Exception {
+        queue = new AirshipSendQueue(10, 1, AirshipSendQueue.Backpressure.BLOCK, TIMEOUT);
+        var deduplicator = new AirshipDeduplicator(Duration.ofMinutes(1), 100, AirshipDeduplicator.Key.CONTENT);
+        long digest = deduplicator.digest(VERIFY);
+        assertThat(deduplicator.tryAcquire(digest)).isTrue();
+        var delivery = new RecordingDelivery(true);
+
+        queue.submit(session, delivery.whenDiscarded(() -> deduplicator.release(digest)));
+        commit(0);
+
+        assertThat(delivery.discarded.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(deduplicator.tryAcquire(digest)).isTrue();
+    }
+
+    private void commit(int index) {
+        KeycloakTransaction transaction = enlisted.get(index);
+        transaction.begin();
+        transaction.commit();
+    }
+
+    private void rollback(int index) {
+        KeycloakTransaction transaction = enlisted.get(index);
+        transaction.begin();
+        transaction.rollback();
+    }
+
+    private static class RecordingDelivery implements AirshipSendQueue.Delivery {
+        private final boolean fail;
+        private final CountDownLatch delivered = new CountDownLatch(1);
+        private final CountDownLatch discarded = new CountDownLatch(1);
+        private volatile boolean accepted;
+        private volatile Thread deliveredOn;
+
+        RecordingDelivery(boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void accepted() {
+            accepted = true;
+        }
+
+        @Override
+        public void deliver() throws EmailException {
+            if (fail) {
+                throw new EmailException("Airship is down");
+            }
+            deliveredOn = Thread.currentThread();
+            delivered.countDown();
+        }
+
+        @Override
+        public void discarded() {
+            discarded.countDown();
+        }
+    }
+}
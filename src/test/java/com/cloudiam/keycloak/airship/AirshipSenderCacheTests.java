@@ -0,0 +1,103 @@
+package com.cloudiam.keycloak.airship;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.RealmModel;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AirshipSenderCacheTests {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final AirshipEmailMessage VERIFY = new AirshipEmailMessage("jane@example.com", "Verify email", "Text", null);
+
+    private final RealmModel realm = mock(RealmModel.class);
+
+    @BeforeEach
+    void setUp() {
+        when(realm.getId()).thenReturn("realm-id");
+        when(realm.getName()).thenReturn("tenant");
+        when(realm.getSmtpConfig()).thenReturn(Map.of(
+                "from", "noreply@example.com",
+                "fromDisplayName", "Example",
+                "replyTo", "support@example.com",
+                "replyToDisplayName", "Support"));
+    }
+
+    @Test
+    void reuseWriterOfRealm() {
+        var senderCache = new AirshipSenderCache(null, null, null);
+
+        AirshipPayloadWriter payloadWriter = senderCache.getPayloadWriter(realm);
+
+        assertThat(senderCache.getPayloadWriter(realm)).isSameAs(payloadWriter);
+        verify(realm, times(1)).getSmtpConfig();
+    }
+
+    @Test
+    void resolveRealmAgainAfterUpdate() throws IOException {
+        var senderCache = new AirshipSenderCache(null, null, null);
+        AirshipPayloadWriter payloadWriter = senderCache.getPayloadWriter(realm);
+        when(realm.getSmtpConfig()).thenReturn(Map.of("from", "hello@example.com"));
+
+        senderCache.onEvent(updated(realm));
+
+        AirshipPayloadWriter updated = senderCache.getPayloadWriter(realm);
+        assertThat(updated).isNotSameAs(payloadWriter);
+        assertThat(sender(updated).at("/sender_address").asText()).isEqualTo("hello@example.com");
+    }
+
+    @Test
+    void preferEnvironmentSender() throws IOException {
+        var senderCache = new AirshipSenderCache("noreply@cloudiam.com", "Cloud IAM", "Cloud IAM <support@cloudiam.com>");
+
+        JsonNode sender = sender(senderCache.getPayloadWriter(realm));
+
+        assertThat(sender.at("/sender_address").asText()).isEqualTo("noreply@cloudiam.com");
+        assertThat(sender.at("/sender_name").asText()).isEqualTo("Cloud IAM");
+        assertThat(sender.at("/reply_to").asText()).isEqualTo("Cloud IAM <support@cloudiam.com>");
+    }
+
+    @Test
+    void combineReplyToOfRealm() throws IOException {
+        var senderCache = new AirshipSenderCache(null, null, null);
+
+        assertThat(sender(senderCache.getPayloadWriter(realm)).at("/reply_to").asText()).isEqualTo("Support <support@example.com>");
+    }
+
+    @Test
+    void omitReplyToWhenRealmHasNone() throws IOException {
+        when(realm.getSmtpConfig()).thenReturn(Map.of("from", "noreply@example.com"));
+        var senderCache = new AirshipSenderCache(null, null, null);
+
+        assertThat(sender(senderCache.getPayloadWriter(realm)).at("/reply_to").isNull()).isTrue();
+    }
+
+    @Test
+    void useReplyToAddressWithoutDisplayName() throws IOException {
+        when(realm.getSmtpConfig()).thenReturn(Map.of("from", "noreply@example.com", "replyTo", "support@example.com"));
+        var senderCache = new AirshipSenderCache(null, null, null);
+
+        assertThat(sender(senderCache.getPayloadWriter(realm)).at("/reply_to").asText()).isEqualTo("support@example.com");
+    }
+
+    private static JsonNode sender(AirshipPayloadWriter payloadWriter) throws IOException {
+        AirshipPayload payload = payloadWriter.write(VERIFY);
+        return MAPPER.readTree(payload.bytes(), 0, payload.length()).at("/notification/email");
+    }
+
+    private static RealmModel.RealmAttributeUpdateEvent updated(RealmModel realm) {
+        var event = mock(RealmModel.RealmAttributeUpdateEvent.class);
+        when(event.getRealm()).thenReturn(realm);
+        return event;
+    }
+}
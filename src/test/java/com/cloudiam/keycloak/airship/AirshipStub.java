@@ -0,0 +1,207 @@
+package com.cloudiam.keycloak.airship;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * In-process stub of the Airship API, scripted by the tests.
+ * <p>
+ * Each request gets the next scripted behavior if there is one, otherwise one of the faults drawn with its probability,
+ * and otherwise the default behavior. Behaviors can add latency and answer with any status, or drop the connection
+ * without a response. The stub listens on all interfaces so that a Keycloak container can reach it through the host.
+ */
+class AirshipStub implements AutoCloseable {
+
+    static final String ENDPOINT = "/api/create-and-send";
+    private static final byte[] ACCEPTED = "{\"ok\":true,\"operation_id\":\"stub\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FAILED = "{\"ok\":false,\"error\":\"Injected by the stub\"}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Answer to one Airship request.
+     *
+     * @param status     status of the response, ignored when the connection is dropped
+     * @param retryAfter {@code Retry-After} header of the response, or {@code null}
+     * @param drop       close the connection without a response
+     */
+    record Behavior(int status, Duration latency, Duration retryAfter, boolean drop) {
+
+        static Behavior accepted() {
+            return status(202);
+        }
+
+        static Behavior status(int status) {
+            return new Behavior(status, Duration.ZERO, null, false);
+        }
+
+        static Behavior tooManyRequests(Duration retryAfter) {
+            return new Behavior(429, Duration.ZERO, retryAfter, false);
+        }
+
+        static Behavior dropConnection() {
+            return new Behavior(0, Duration.ZERO, null, true);
+        }
+
+        Behavior withLatency(Duration latency) {
+            return new Behavior(status, latency, retryAfter, drop);
+        }
+    }
+
+    private record Fault(Behavior behavior, double probability) {
+    }
+
+    /**
+     * Request received by the stub, with its body decompressed.
+     *
+     * @param receivedAt {@link System#nanoTime()} when the request was received
+     */
+    record Request(Map<String, String> headers, String body, long receivedAt) {
+
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Queue<Behavior> script = new ConcurrentLinkedQueue<>();
+    private final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+    private final List<Fault> faults = new CopyOnWriteArrayList<>();
+    private volatile Behavior defaultBehavior = Behavior.accepted();
+
+    private AirshipStub(HttpServer server) {
+        this.server = server;
+    }
+
+    static AirshipStub start() {
+        try {
+            var stub = new AirshipStub(HttpServer.create(new InetSocketAddress(0), 0));
+            stub.server.createContext(ENDPOINT, stub::handle);
+            stub.server.setExecutor(stub.executor);
+            stub.server.start();
+            return stub;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to start the Airship stub", e);
+        }
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Answers the next requests with the given behaviors, in order.
+     */
+    void enqueue(Behavior... behaviors) {
+        script.addAll(List.of(behaviors));
+    }
+
+    void setDefault(Behavior behavior) {
+        this.defaultBehavior = behavior;
+    }
+
+    /**
+     * Answers requests at random with the given fault, with a probability between {@code 0} and {@code 1}.
+     */
+    void addFault(Behavior fault, double probability) {
+        faults.add(new Fault(fault, probability));
+    }
+
+    List<Request> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    void clearRequests() {
+        requests.clear();
+    }
+
+    /**
+     * Forgets the requests received and the behaviors configured.
+     */
+    void reset() {
+        script.clear();
+        requests.clear();
+        faults.clear();
+        defaultBehavior = Behavior.accepted();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long receivedAt = System.nanoTime();
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        exchange.getRequestHeaders().forEach((name, values) -> headers.put(name, values.getFirst()));
+        try (InputStream body = decode(exchange.getRequestBody(), headers.get("Content-Encoding"))) {
+            requests.add(new Request(headers, new String(body.readAllBytes(), StandardCharsets.UTF_8), receivedAt));
+        }
+
+        Behavior behavior = next();
+        if (!behavior.latency().isZero()) {
+            try {
+                Thread.sleep(behavior.latency());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (behavior.drop()) {
+            // Closing the exchange before the response headers closes the connection
+            exchange.close();
+            return;
+        }
+        byte[] response = behavior.status() < 300 ? ACCEPTED : FAILED;
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        if (behavior.retryAfter() != null) {
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(behavior.retryAfter().toSeconds()));
+        }
+        exchange.sendResponseHeaders(behavior.status(), response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+    }
+
+    private Behavior next() {
+        Behavior scripted = script.poll();
+        if (scripted != null) {
+            return scripted;
+        }
+        double draw = ThreadLocalRandom.current().nextDouble();
+        for (Fault fault : faults) {
+            draw -= fault.probability();
+            if (draw < 0) {
+                return fault.behavior();
+            }
+        }
+        return defaultBehavior;
+    }
+
+    private static InputStream decode(InputStream body, String encoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(body);
+        }
+        if ("deflate".equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(body);
+        }
+        return body;
+    }
+}
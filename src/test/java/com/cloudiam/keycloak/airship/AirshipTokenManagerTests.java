@@ -0,0 +1,137 @@
+package com.cloudiam.keycloak.airship;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AirshipTokenManagerTests {
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<String> forms = ConcurrentHashMap.newKeySet();
+    private volatile int status = 200;
+    private volatile long expiresIn = 3600;
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private HttpServer server;
+    private HttpClient httpClient;
+    private AirshipTokenManager tokens;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/token", this::token);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        httpClient = HttpClient.newHttpClient();
+        var oauth = new AirshipAccount.OAuth("client", "secret", "http://localhost:" + server.getAddress().getPort() + "/token", "nu");
+        tokens = new AirshipTokenManager(httpClient, "app-key", oauth, Duration.ofSeconds(5), new AirshipMetrics(new SimpleMeterRegistry()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        tokens.close();
+        httpClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    void cacheToken() throws Exception {
+        assertThat(tokens.getToken()).isEqualTo("token-1");
+        assertThat(tokens.getToken()).isEqualTo("token-1");
+
+        assertThat(requests).hasValue(1);
+        assertThat(forms).containsExactly("grant_type=client_credentials&sub=app%3Aapp-key&scope=nu");
+    }
+
+    @Test
+    void shareConcurrentRefresh() throws Exception {
+        release = new CountDownLatch(1);
+        List<Future<String>> futures = new ArrayList<>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 20; i++) {
+                futures.add(executor.submit(tokens::getToken));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<String> future : futures) {
+                assertThat(future.get()).isEqualTo("token-1");
+            }
+        }
+
+        assertThat(requests).hasValue(1);
+    }
+
+    @Test
+    void refreshRejectedTokenOnce() throws Exception {
+        String rejected = tokens.getToken();
+
+        assertThat(tokens.refresh(rejected)).isEqualTo("token-2");
+        // A sender that saw the same rejection gets the new token without another request
+        assertThat(tokens.refresh(rejected)).isEqualTo("token-2");
+        assertThat(requests).hasValue(2);
+    }
+
+    @Test
+    void requestExpiredTokenAgain() throws Exception {
+        expiresIn = 1;
+        assertThat(tokens.getToken()).isEqualTo("token-1");
+        Thread.sleep(1100);
+
+        assertThat(tokens.getToken()).isEqualTo("token-2");
+    }
+
+    @Test
+    void prefetchTokenInBackground() throws Exception {
+        tokens.prefetch();
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (requests.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(tokens.getToken()).isEqualTo("token-1");
+        assertThat(requests).hasValue(1);
+    }
+
+    @Test
+    void failOnRejectedCredentials() {
+        status = 401;
+
+        assertThatThrownBy(tokens::getToken).isInstanceOf(IOException.class).hasMessageContaining("401");
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        forms.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int count = requests.incrementAndGet();
+        byte[] body = status == 200
+                ? ("{\"access_token\":\"token-" + count + "\",\"token_type\":\"Bearer\",\"expires_in\":" + expiresIn + "}").getBytes(StandardCharsets.UTF_8)
+                : "{\"error\":\"invalid_client\"}".getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+}